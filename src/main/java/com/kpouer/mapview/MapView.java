@@ -15,7 +15,11 @@
  */
 package com.kpouer.mapview;
 
+import com.kpouer.mapview.marker.Layer;
 import com.kpouer.mapview.marker.Marker;
+import com.kpouer.mapview.tile.Tile;
+import com.kpouer.mapview.tile.TileFailure;
+import com.kpouer.mapview.tile.TileListener;
 import com.kpouer.mapview.tile.TileServer;
 import com.kpouer.mapview.tile.TilesTools;
 import com.kpouer.mapview.widget.MouseLocationLabel;
@@ -26,37 +30,132 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
+ * A map view painting tiles and markers.
+ * The tiles are composed in a back buffer of the size of the view. When the map is dragged the buffer content is
+ * shifted and only the exposed strips are rendered, the buffer is fully rendered again only when the zoom level, the
+ * tile server or the size change. The markers are painted over the buffer at every paint.
+ * The markers are indexed by their bounds so that only the visible ones are painted and only the ones under the
+ * mouse are tested by mouse events. If a marker is changed, {@link #updateMarker(Marker)} must be called.
+ * When the map is moved, the screen location of a marker is computed from its world coordinates only when it is
+ * painted or tested, so a pan does not cost anything for the markers out of the screen.
+ * The tiles of the buffer that were painted with a replacement or left empty are remembered: they are rendered
+ * again when they or one of their ancestor or child tiles arrive, when their failure expires, and they are
+ * requested again when the visible area changes, in case the tile server dropped them.
+ *
  * @author Matthieu Casanova
  */
 @Slf4j
 public class MapView extends JPanel {
+    /**
+     * Tiles arriving within this delay (in ms) are repainted together.
+     */
+    private static final int REPAINT_DELAY = 16;
+    /**
+     * How many zoom levels are looked up to find a replacement for a missing tile.
+     */
+    private static final int MAX_FALLBACK_DEPTH = 5;
+
     private TileServer tileServer;
     private final MouseLocationLabel mouseLocationLabel;
+    private final TileListener       tileListener;
+    /**
+     * The screen area of the tiles that arrived since the last repaint, only accessed in the EDT.
+     */
+    private final Rectangle          dirtyRegion;
+    private final Timer              repaintTimer;
+    private final Prefetcher         prefetcher;
+    /**
+     * The composed tiles, only accessed in the EDT.
+     */
+    @Nullable
+    private BufferedImage            tileBuffer;
+    /**
+     * The map pixel area that must be rendered again in the buffer, at the buffer zoom level.
+     */
+    private final Rectangle          bufferDirty;
+    private boolean                  bufferValid;
+    private int                      bufferShiftX;
+    private int                      bufferShiftY;
+    private int                      bufferZoom;
+    /**
+     * The tiles of the buffer zoom level that are in the buffer but not loaded, only accessed in the EDT.
+     */
+    private final Set<Tile>          incompleteTiles;
+    /**
+     * The expiration time of the failures of incomplete tiles, only accessed in the EDT.
+     */
+    private final Map<Tile, Long>    failedTiles;
+    private final Timer              failureTimer;
+    /**
+     * The maximum number of tiles to prefetch, 0 to disable prefetching.
+     */
+    @Getter
+    private int prefetchBudget;
 
     private int xPos;
     private int yPos;
     @Getter
     private int zoom = 13;
 
+    @Getter
     private final TilesTools             tilesTools;
+    private final java.util.List<Layer>  layers;
     private final java.util.List<Marker> markers;
+    private final MarkerIndex            markerIndex;
+    /**
+     * The zoom level of the marker index.
+     */
+    private       int                    markerIndexZoom;
+    /**
+     * False when the map moved since the visible markers were located.
+     */
+    private       boolean                markersLocated;
 
     public MapView(TileServer tileServer) {
         super(null);
         this.tileServer    = tileServer;
         tilesTools         = new TilesTools(tileServer.getTilesSize());
+        layers             = new ArrayList<>();
         markers            = new ArrayList<>();
+        markerIndex        = new MarkerIndex();
         mouseLocationLabel = new MouseLocationLabel();
+        dirtyRegion        = new Rectangle();
+        bufferDirty        = new Rectangle();
+        repaintTimer       = new Timer(REPAINT_DELAY, e -> repaintDirtyRegion());
+        repaintTimer.setRepeats(false);
+        incompleteTiles    = new HashSet<>();
+        failedTiles        = new HashMap<>();
+        failureTimer       = new Timer(0, e -> failuresExpired());
+        failureTimer.setRepeats(false);
+        prefetcher         = new Prefetcher();
+        tileListener       = new TileListener() {
+            @Override
+            public void tileLoaded(Tile tile) {
+                SwingUtilities.invokeLater(() -> MapView.this.tileLoaded(tile));
+            }
+
+            @Override
+            public void tileFailed(Tile tile, TileFailure failure) {
+                SwingUtilities.invokeLater(() -> MapView.this.tileFailed(tile, failure.getTime()));
+            }
+        };
+        tileServer.addTileListener(tileListener);
 
         setCenter(48.85337, 2.34847, zoom);
         addComponentListener(new ComponentAdapter() {
             @Override
             public void componentResized(ComponentEvent e) {
-                markers.forEach(marker -> marker.computeLocation(MapView.this));
+                mapMoved();
+                visibleAreaChanged();
                 mouseLocationLabel.setLocation(getWidth() - mouseLocationLabel.getWidth(),
                                                getHeight() - mouseLocationLabel.getHeight());
             }
@@ -76,7 +175,13 @@ public void componentResized(ComponentEvent e) {
     public void setTileServer(TileServer tileServer) {
         if (this.tileServer != tileServer) {
             log.info("setTileServer: {}", tileServer);
+            this.tileServer.removeTileListener(tileListener);
             this.tileServer = tileServer;
+            tileServer.addTileListener(tileListener);
+            bufferValid = false;
+            failedTiles.clear();
+            failureTimer.stop();
+            visibleAreaChanged();
         }
     }
 
@@ -89,17 +194,65 @@ public void setMouseLocationLabelVisible(boolean visible) {
         mouseLocationLabel.setVisible(visible);
     }
 
+    /**
+     * Set the maximum number of tiles that are loaded in advance, ahead of the drag motion and at the nearby zoom
+     * levels. They are loaded after the visible tiles.
+     * Prefetching is disabled by default, beware that some tile servers do not allow it.
+     *
+     * @param prefetchBudget the number of tiles, 0 to disable prefetching
+     */
+    public void setPrefetchBudget(int prefetchBudget) {
+        this.prefetchBudget = prefetchBudget;
+    }
+
+    /**
+     * Add a layer, it is painted over the tiles and the previous layers, below the markers.
+     * You need to call repaint after calling this
+     *
+     * @param layer the layer
+     */
+    public void addLayer(Layer layer) {
+        layers.add(layer);
+    }
+
+    public void removeLayer(Layer layer) {
+        layers.remove(layer);
+    }
+
+    /**
+     * Add a marker, it is painted over the markers already added.
+     * A marker added again is moved over the others.
+     * You need to call repaint after calling this
+     *
+     * @param marker the marker
+     */
     public void addMarker(Marker marker) {
+        marker.computeLocation(this);
+        if (!markerIndex.add(marker, getMapBounds(marker))) {
+            markers.remove(marker);
+        }
         markers.add(marker);
+    }
+
+    /**
+     * Update a marker after its position, size or shape changed.
+     * You need to call repaint after calling this
+     *
+     * @param marker the marker
+     */
+    public void updateMarker(Marker marker) {
         marker.computeLocation(this);
+        markerIndex.update(marker, getMapBounds(marker));
     }
 
     public void removeMarker(Marker marker) {
         markers.remove(marker);
+        markerIndex.remove(marker);
     }
 
     public void removeAllMarkers() {
         markers.clear();
+        markerIndex.clear();
     }
 
     public boolean areMarkersVisible(java.util.List<? extends Marker> markers) {
@@ -145,7 +298,7 @@ public void fitToMarkers() {
     private void moveMarker(Marker marker, int x, int y) {
         marker.setLongitude(tilesTools.position2longitude(x + getShiftX(), zoom));
         marker.setLatitude(tilesTools.position2latitude(y + getShiftY(), zoom));
-        marker.computeLocation(this);
+        updateMarker(marker);
     }
 
     public void fitToMarkers(java.util.List<? extends Marker> markers) {
@@ -185,20 +338,23 @@ public void setZoom(int zoom) {
         xPos      = tilesTools.zoom(xPos, this.zoom, zoom);
         yPos      = tilesTools.zoom(yPos, this.zoom, zoom);
         this.zoom = clipZoom(zoom);
-        markers.forEach(marker -> marker.computeLocation(this));
+        mapMoved();
+        visibleAreaChanged();
     }
 
     public void setCenter(int xPos, int yPos) {
         this.xPos = xPos;
         this.yPos = yPos;
-        markers.forEach(marker -> marker.computeLocation(this));
+        mapMoved();
+        visibleAreaChanged();
     }
 
     public void setCenter(int xPos, int yPos, int zoom) {
         this.xPos = xPos;
         this.yPos = yPos;
         this.zoom = zoom;
-        markers.forEach(marker -> marker.computeLocation(this));
+        mapMoved();
+        visibleAreaChanged();
     }
 
     public double getLatitude() {
@@ -244,6 +400,26 @@ private MapPoint latLngToMapPoint(LatLng latLng, int newZoom) {
                             newZoom);
     }
 
+    /**
+     * Returns the screen x coordinate of a world x coordinate.
+     *
+     * @param worldX the world coordinate, see {@link TilesTools}
+     * @return the screen coordinate
+     */
+    public int worldXToPointScreen(int worldX) {
+        return tilesTools.worldToPoint(worldX, zoom) - getShiftX();
+    }
+
+    /**
+     * Returns the screen y coordinate of a world y coordinate.
+     *
+     * @param worldY the world coordinate, see {@link TilesTools}
+     * @return the screen coordinate
+     */
+    public int worldYToPointScreen(int worldY) {
+        return tilesTools.worldToPoint(worldY, zoom) - getShiftY();
+    }
+
     public int latitudeToPointScreen(double latitude) {
         return tilesTools.latitudeToPoint(latitude, zoom) - getShiftY();
     }
@@ -278,6 +454,96 @@ public void translate(int x, int y) {
         setCenter(xPos + x, yPos + y);
     }
 
+    /**
+     * Called when the map moved, the markers will be located again when they are painted.
+     * The index is in map pixels so it is rebuilt only when the zoom level changed.
+     */
+    private void mapMoved() {
+        markersLocated = false;
+        if (markerIndexZoom != zoom) {
+            markerIndexZoom = zoom;
+            markerIndex.clear();
+            for (var marker : markers) {
+                marker.computeLocation(this);
+                markerIndex.add(marker, getMapBounds(marker));
+            }
+        }
+    }
+
+    /**
+     * Returns the bounds of a marker in map pixels, from its screen bounds.
+     */
+    @Nullable
+    private java.awt.Rectangle getMapBounds(Marker marker) {
+        var bounds = marker.getBounds();
+        if (bounds == null) {
+            return null;
+        }
+        bounds.translate(getShiftX(), getShiftY());
+        bounds.width  = Math.max(bounds.width, 1);
+        bounds.height = Math.max(bounds.height, 1);
+        return bounds;
+    }
+
+    /**
+     * Returns the markers whose bounds contain a screen point, located on the screen.
+     */
+    private java.util.List<Marker> getMarkersAt(Point point) {
+        var found = markerIndex.query(point.x + getShiftX(), point.y + getShiftY());
+        if (!markersLocated) {
+            found.forEach(marker -> marker.computeLocation(this));
+        }
+        return found;
+    }
+
+    /**
+     * Tell the tile server which tiles are visible so it can download them first.
+     */
+    private void visibleAreaChanged() {
+        int tilesSize = tileServer.getTilesSize();
+        int shiftX    = getShiftX();
+        int shiftY    = getShiftY();
+        int minTileX  = Math.floorDiv(shiftX, tilesSize);
+        int minTileY  = Math.floorDiv(shiftY, tilesSize);
+        int maxTileX  = Math.floorDiv(shiftX + Math.max(getWidth(), 1) - 1, tilesSize);
+        int maxTileY  = Math.floorDiv(shiftY + Math.max(getHeight(), 1) - 1, tilesSize);
+        tileServer.setVisibleArea(zoom, minTileX, minTileY, maxTileX, maxTileY);
+        requestIncompleteTiles(minTileX, minTileY, maxTileX, maxTileY);
+        if (prefetchBudget > 0) {
+            tileServer.prefetch(prefetcher.getTiles(zoom,
+                                                    minTileX,
+                                                    minTileY,
+                                                    maxTileX,
+                                                    maxTileY,
+                                                    tileServer.getMinZoom(),
+                                                    tileServer.getMaxZoom(),
+                                                    tilesSize,
+                                                    prefetchBudget));
+        }
+    }
+
+    /**
+     * Request again the visible incomplete tiles, the tile server may have dropped them while they were out of the
+     * visible area but still in the buffer.
+     */
+    private void requestIncompleteTiles(int minTileX, int minTileY, int maxTileX, int maxTileY) {
+        for (var tile : incompleteTiles) {
+            if (tile.getZoom() == zoom &&
+                tile.getX() >= minTileX &&
+                tile.getX() <= maxTileX &&
+                tile.getY() >= minTileY &&
+                tile.getY() <= maxTileY) {
+                try {
+                    if (tileServer.getTile(tile.getX(), tile.getY(), zoom) != null) {
+                        markTileDirty(tile);
+                    }
+                } catch (IOException e) {
+                    log.warn("Unable to get tile {}", tile, e);
+                }
+            }
+        }
+    }
+
     private int getShiftX() {
         return xPos - getWidth() / 2;
     }
@@ -289,56 +555,303 @@ private int getShiftY() {
     @Override
     public void paintComponent(Graphics g) {
         super.paintComponent(g);
-        int realCenterX = getWidth() / 2;
-        int realCenterY = getHeight() / 2;
-
-        int shiftX      = xPos - realCenterX;
-        int shiftY      = yPos - realCenterY;
-        int tilesSize   = tileServer.getTilesSize();
-        int centerTileX = realCenterX - (xPos % tilesSize);
-        int centerTileY = realCenterY - (yPos % tilesSize);
-        int leftXTiles  = centerTileX / tilesSize + 1;
-        int topYTiles   = centerTileY / tilesSize + 1;
-
-        int     startX       = centerTileX - leftXTiles * tilesSize;
-        int     startY       = centerTileY - topYTiles * tilesSize;
-        boolean hasToRepaint = false;
-        for (int x = startX; x < getWidth(); x += tilesSize) {
-            for (int y = startY; y < getHeight(); y += tilesSize) {
+        int width  = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        updateTileBuffer(width, height);
+        g.drawImage(tileBuffer, 0, 0, null);
+        for (var layer : layers) {
+            var layerGraphics = (Graphics2D) g.create();
+            try {
+                layer.paint(layerGraphics, this);
+            } finally {
+                layerGraphics.dispose();
+            }
+        }
+        var visibleMarkers = markerIndex.query(getShiftX(), getShiftY(), width, height);
+        if (!markersLocated) {
+            visibleMarkers.forEach(marker -> marker.computeLocation(this));
+            markersLocated = true;
+        }
+        visibleMarkers.forEach(marker -> marker.paint(g));
+    }
+
+    /**
+     * Bring the tile buffer up to date with the current position.
+     * If only the position changed since the last paint, the buffer is shifted and only the exposed strips are
+     * rendered.
+     */
+    private void updateTileBuffer(int width, int height) {
+        int shiftX = getShiftX();
+        int shiftY = getShiftY();
+        if (tileBuffer == null || tileBuffer.getWidth() != width || tileBuffer.getHeight() != height) {
+            var graphicsConfiguration = getGraphicsConfiguration();
+            tileBuffer  = graphicsConfiguration == null ?
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB) :
+                graphicsConfiguration.createCompatibleImage(width, height);
+            bufferValid = false;
+        }
+        var g = tileBuffer.createGraphics();
+        try {
+            int dx = bufferShiftX - shiftX;
+            int dy = bufferShiftY - shiftY;
+            if (!bufferValid || bufferZoom != zoom || Math.abs(dx) >= width || Math.abs(dy) >= height) {
+                incompleteTiles.clear();
+                renderTiles(g, 0, 0, width, height, shiftX, shiftY);
+                bufferValid = true;
+            } else {
+                if (dx != 0 || dy != 0) {
+                    g.copyArea(0, 0, width, height, dx, dy);
+                    forgetIncompleteTiles(width, height, shiftX, shiftY);
+                    if (dx != 0) {
+                        renderTiles(g, dx > 0 ? 0 : width + dx, 0, Math.abs(dx), height, shiftX, shiftY);
+                    }
+                    if (dy != 0) {
+                        renderTiles(g, 0, dy > 0 ? 0 : height + dy, width, Math.abs(dy), shiftX, shiftY);
+                    }
+                }
+                if (!bufferDirty.isEmpty()) {
+                    var area = bufferDirty.intersection(new Rectangle(shiftX, shiftY, width, height));
+                    if (!area.isEmpty()) {
+                        renderTiles(g, area.x - shiftX, area.y - shiftY, area.width, area.height, shiftX, shiftY);
+                    }
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        bufferDirty.setBounds(0, 0, 0, 0);
+        bufferShiftX = shiftX;
+        bufferShiftY = shiftY;
+        bufferZoom   = zoom;
+    }
+
+    /**
+     * Forget the incomplete tiles that left the buffer, they will be rendered again if they come back.
+     */
+    private void forgetIncompleteTiles(int width, int height, int shiftX, int shiftY) {
+        int tilesSize = tileServer.getTilesSize();
+        int minTileX  = Math.floorDiv(shiftX, tilesSize);
+        int minTileY  = Math.floorDiv(shiftY, tilesSize);
+        int maxTileX  = Math.floorDiv(shiftX + width - 1, tilesSize);
+        int maxTileY  = Math.floorDiv(shiftY + height - 1, tilesSize);
+        incompleteTiles.removeIf(tile -> tile.getX() < minTileX ||
+            tile.getX() > maxTileX ||
+            tile.getY() < minTileY ||
+            tile.getY() > maxTileY);
+        failedTiles.keySet().retainAll(incompleteTiles);
+    }
+
+    /**
+     * Render the tiles covering an area of the buffer.
+     *
+     * @param g      the graphics of the buffer
+     * @param x      the x coordinate of the area in the buffer
+     * @param y      the y coordinate of the area in the buffer
+     * @param width  the width of the area
+     * @param height the height of the area
+     * @param shiftX the map x coordinate of the left of the buffer
+     * @param shiftY the map y coordinate of the top of the buffer
+     */
+    private void renderTiles(Graphics2D g, int x, int y, int width, int height, int shiftX, int shiftY) {
+        g.setClip(x, y, width, height);
+        g.setColor(getBackground());
+        g.fillRect(x, y, width, height);
+        int tilesSize = tileServer.getTilesSize();
+        int minTileX  = Math.floorDiv(x + shiftX, tilesSize);
+        int minTileY  = Math.floorDiv(y + shiftY, tilesSize);
+        int maxTileX  = Math.floorDiv(x + width - 1 + shiftX, tilesSize);
+        int maxTileY  = Math.floorDiv(y + height - 1 + shiftY, tilesSize);
+        for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+            for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                int tileScreenX = tileX * tilesSize - shiftX;
+                int tileScreenY = tileY * tilesSize - shiftY;
+                var tile        = new Tile(tileX, tileY, zoom);
                 try {
-                    var image = tileServer.getTile((x + shiftX) / tilesSize, (y + shiftY) / tilesSize, zoom);
+                    var image = tileServer.getTile(tileX, tileY, zoom);
                     if (image != null) {
-                        g.drawImage(image, x, y, null);
+                        g.drawImage(image, tileScreenX, tileScreenY, null);
+                        incompleteTiles.remove(tile);
                     } else {
-                        hasToRepaint = true;
+                        paintFallbackTile(g, tileX, tileY, tileScreenX, tileScreenY, tilesSize);
+                        incompleteTiles.add(tile);
                     }
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    log.warn("Unable to get tile {}", tile, e);
                 }
             }
         }
-        if (hasToRepaint) {
-            repaint();
+        g.setClip(null);
+    }
+
+    /**
+     * Paint a replacement for a tile that is not loaded yet, using the tiles of other zoom levels already in memory.
+     * The nearest ancestor tile is scaled first, then the child tiles, which are more detailed, are painted over it.
+     *
+     * @param g         the graphics
+     * @param tileX     the x coordinate of the missing tile
+     * @param tileY     the y coordinate of the missing tile
+     * @param x         the x position of the tile on screen
+     * @param y         the y position of the tile on screen
+     * @param tilesSize the size of the tiles
+     */
+    private void paintFallbackTile(Graphics g, int tileX, int tileY, int x, int y, int tilesSize) {
+        for (int depth = 1; depth <= MAX_FALLBACK_DEPTH && zoom - depth >= tileServer.getMinZoom(); depth++) {
+            int size = tilesSize >> depth;
+            if (size == 0) {
+                break;
+            }
+            var parent = tileServer.getCachedTile(tileX >> depth, tileY >> depth, zoom - depth);
+            if (parent != null) {
+                int mask = (1 << depth) - 1;
+                int sx   = (tileX & mask) * size;
+                int sy   = (tileY & mask) * size;
+                g.drawImage(parent, x, y, x + tilesSize, y + tilesSize, sx, sy, sx + size, sy + size, null);
+                break;
+            }
+        }
+        if (zoom < tileServer.getMaxZoom()) {
+            int half = tilesSize / 2;
+            for (int i = 0; i < 2; i++) {
+                for (int j = 0; j < 2; j++) {
+                    var child = tileServer.getCachedTile(2 * tileX + i, 2 * tileY + j, zoom + 1);
+                    if (child != null) {
+                        g.drawImage(child, x + i * half, y + j * half, half, half, null);
+                    }
+                }
+            }
         }
-        markers.forEach(marker -> marker.paint(g));
     }
 
     @Override
     protected void processMouseEvent(MouseEvent e) {
         super.processMouseEvent(e);
         var point = e.getPoint();
-        markers.stream()
-               .filter(marker -> marker.contains(point))
-               .forEach(marker -> marker.processMouseEvent(e));
+        getMarkersAt(point).stream()
+                           .filter(marker -> marker.contains(point))
+                           .forEach(marker -> marker.processMouseEvent(e));
     }
 
     @Override
     protected void processMouseMotionEvent(MouseEvent e) {
         super.processMouseMotionEvent(e);
         var point = e.getPoint();
-        markers.stream()
-               .filter(marker -> marker.contains(point))
-               .forEach(marker -> marker.processMouseMotionEvent(e));
+        getMarkersAt(point).stream()
+                           .filter(marker -> marker.contains(point))
+                           .forEach(marker -> marker.processMouseMotionEvent(e));
+    }
+
+    /**
+     * Called in the EDT when a tile was loaded by the tile server.
+     * If it is at the current zoom level it is rendered in the buffer, otherwise the incomplete tiles it can replace
+     * are rendered again.
+     *
+     * @param tile the loaded tile
+     */
+    private void tileLoaded(Tile tile) {
+        if (tile.getZoom() == zoom) {
+            markTileDirty(tile);
+            return;
+        }
+        int depth = zoom - tile.getZoom();
+        if (depth < -1 || depth > MAX_FALLBACK_DEPTH || incompleteTiles.isEmpty()) {
+            return;
+        }
+        // the range of tiles of the current zoom level covered by the loaded tile
+        int minX = depth > 0 ? tile.getX() << depth : tile.getX() >> 1;
+        int minY = depth > 0 ? tile.getY() << depth : tile.getY() >> 1;
+        int maxX = depth > 0 ? minX + (1 << depth) - 1 : minX;
+        int maxY = depth > 0 ? minY + (1 << depth) - 1 : minY;
+        for (var incompleteTile : incompleteTiles) {
+            if (incompleteTile.getZoom() == zoom &&
+                incompleteTile.getX() >= minX &&
+                incompleteTile.getX() <= maxX &&
+                incompleteTile.getY() >= minY &&
+                incompleteTile.getY() <= maxY) {
+                markTileDirty(incompleteTile);
+            }
+        }
+    }
+
+    /**
+     * Called in the EDT when a tile could not be loaded.
+     * If it is incomplete in the buffer, it will be rendered again, and so requested again, when the failure expires.
+     *
+     * @param tile the failed tile
+     * @param time the time when the failure expires
+     */
+    private void tileFailed(Tile tile, long time) {
+        if (!incompleteTiles.contains(tile)) {
+            return;
+        }
+        failedTiles.put(tile, time);
+        scheduleFailureTimer();
+    }
+
+    private void failuresExpired() {
+        long now = System.currentTimeMillis();
+        failedTiles.entrySet().removeIf(entry -> {
+            if (entry.getValue() > now) {
+                return false;
+            }
+            if (entry.getKey().getZoom() == zoom && incompleteTiles.contains(entry.getKey())) {
+                markTileDirty(entry.getKey());
+            }
+            return true;
+        });
+        scheduleFailureTimer();
+    }
+
+    /**
+     * Start the failure timer for the next failure to expire.
+     */
+    private void scheduleFailureTimer() {
+        failureTimer.stop();
+        if (!failedTiles.isEmpty()) {
+            long next  = failedTiles.values().stream().mapToLong(Long::longValue).min().getAsLong();
+            long delay = Math.max(next - System.currentTimeMillis() + 1, 0);
+            failureTimer.setInitialDelay((int) Math.min(delay, Integer.MAX_VALUE));
+            failureTimer.start();
+        }
+    }
+
+    /**
+     * Mark a tile of the current zoom level to be rendered again in the tile buffer, and add its screen area to
+     * the dirty region that will be repainted at the next frame.
+     *
+     * @param tile the tile
+     */
+    private void markTileDirty(Tile tile) {
+        int tilesSize = tileServer.getTilesSize();
+        int mapX      = tile.getX() * tilesSize;
+        int mapY      = tile.getY() * tilesSize;
+        int x         = mapX - getShiftX();
+        int y         = mapY - getShiftY();
+        if (x + tilesSize <= 0 || y + tilesSize <= 0 || x >= getWidth() || y >= getHeight()) {
+            return;
+        }
+        if (bufferDirty.isEmpty()) {
+            bufferDirty.setBounds(mapX, mapY, tilesSize, tilesSize);
+        } else {
+            bufferDirty.add(mapX, mapY);
+            bufferDirty.add(mapX + tilesSize, mapY + tilesSize);
+        }
+        if (dirtyRegion.isEmpty()) {
+            dirtyRegion.setBounds(x, y, tilesSize, tilesSize);
+        } else {
+            dirtyRegion.add(x, y);
+            dirtyRegion.add(x + tilesSize, y + tilesSize);
+        }
+        if (!repaintTimer.isRunning()) {
+            repaintTimer.start();
+        }
+    }
+
+    private void repaintDirtyRegion() {
+        repaint(dirtyRegion);
+        dirtyRegion.setBounds(0, 0, 0, 0);
     }
 
     private int clipZoom(int zoom) {
@@ -361,7 +874,7 @@ public void mouseMoved(MouseEvent e) {
         @Override
         public void mousePressed(MouseEvent e) {
             var point = e.getPoint();
-            var first = markers
+            var first = getMarkersAt(point)
                 .stream()
                 .filter(Marker::isDraggable)
                 .filter(marker -> marker.contains(point))
@@ -381,7 +894,10 @@ public void mouseDragged(MouseEvent e) {
                 startDrag = e.getPoint();
             } else {
                 if (draggingMarker == null) {
-                    translate(startDrag.x - e.getX(), startDrag.y - e.getY());
+                    int dx = startDrag.x - e.getX();
+                    int dy = startDrag.y - e.getY();
+                    prefetcher.dragged(dx, dy, e.getWhen());
+                    translate(dx, dy);
                 } else {
                     moveMarker(draggingMarker, e.getX(), e.getY());
                 }
@@ -397,6 +913,7 @@ public void mouseWheelMoved(MouseWheelEvent e) {
                 return;
             }
             tileServer.cancelPendingZoom(newZoom);
+            prefetcher.zoomed(newZoom - zoom, e.getWhen());
             var mousePoint    = pointScreenToMapPoint(e.getPoint());
             var newMousePoint = tilesTools.zoom(mousePoint, zoom, newZoom);
 
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview;
+
+import com.kpouer.mapview.marker.Marker;
+import jakarta.annotation.Nullable;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * A uniform grid of the marker bounds, in map pixels at the current zoom level, to find the markers in an area or
+ * under the mouse without testing all of them.
+ * Markers without bounds or covering many cells are kept in a separate list and returned by every query.
+ * The queries return the markers in the order they were added, which is the paint order.
+ *
+ * @author Matthieu Casanova
+ */
+class MarkerIndex {
+    private static final int CELL_SHIFT = 8;
+    /**
+     * A marker covering more cells than this is not put in the grid.
+     */
+    private static final int MAX_CELLS  = 16;
+
+    private final Map<Long, List<Entry>> cells;
+    private final Map<Marker, Entry>     entries;
+    /**
+     * The markers without bounds or too large for the grid.
+     */
+    private final List<Entry>            unindexed;
+    private final Comparator<Entry>      order;
+    private       int                    nextSequence;
+    private       int                    queryStamp;
+
+    MarkerIndex() {
+        cells     = new HashMap<>();
+        entries   = new HashMap<>();
+        unindexed = new ArrayList<>();
+        order     = Comparator.comparingInt(entry -> entry.sequence);
+    }
+
+    /**
+     * Add a marker, it is returned after the markers already added.
+     * A marker added again is moved after the others.
+     *
+     * @param marker the marker
+     * @param bounds the bounds of the marker in map pixels, null if unknown
+     * @return false if the marker was already added
+     */
+    boolean add(Marker marker, @Nullable Rectangle bounds) {
+        var entry    = new Entry(marker, nextSequence++);
+        var previous = entries.put(marker, entry);
+        if (previous != null) {
+            delete(previous);
+        }
+        insert(entry, bounds);
+        return previous == null;
+    }
+
+    /**
+     * Update the bounds of a marker, keeping its order.
+     *
+     * @param marker the marker
+     * @param bounds the new bounds of the marker in map pixels, null if unknown
+     */
+    void update(Marker marker, @Nullable Rectangle bounds) {
+        var entry = entries.get(marker);
+        if (entry != null) {
+            delete(entry);
+            insert(entry, bounds);
+        }
+    }
+
+    void remove(Marker marker) {
+        var entry = entries.remove(marker);
+        if (entry != null) {
+            delete(entry);
+        }
+    }
+
+    void clear() {
+        cells.clear();
+        entries.clear();
+        unindexed.clear();
+    }
+
+    /**
+     * Returns the markers that may intersect an area.
+     *
+     * @return the markers in the order they were added
+     */
+    List<Marker> query(int x, int y, int width, int height) {
+        var area     = new Rectangle(x, y, Math.max(width, 1), Math.max(height, 1));
+        var found    = new ArrayList<Entry>();
+        int stamp    = ++queryStamp;
+        int minCellX = x >> CELL_SHIFT;
+        int minCellY = y >> CELL_SHIFT;
+        int maxCellX = (x + area.width - 1) >> CELL_SHIFT;
+        int maxCellY = (y + area.height - 1) >> CELL_SHIFT;
+        for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+            for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+                var cell = cells.get(getKey(cellX, cellY));
+                if (cell != null) {
+                    for (var entry : cell) {
+                        // a marker covering several cells is found once
+                        if (entry.stamp != stamp && entry.bounds.intersects(area)) {
+                            entry.stamp = stamp;
+                            found.add(entry);
+                        }
+                    }
+                }
+            }
+        }
+        for (var entry : unindexed) {
+            if (entry.bounds == null || entry.bounds.intersects(area)) {
+                found.add(entry);
+            }
+        }
+        found.sort(order);
+        var markers = new ArrayList<Marker>(found.size());
+        for (var entry : found) {
+            markers.add(entry.marker);
+        }
+        return markers;
+    }
+
+    /**
+     * Returns the markers whose bounds contain a point.
+     *
+     * @return the markers in the order they were added
+     */
+    List<Marker> query(int x, int y) {
+        return query(x, y, 1, 1);
+    }
+
+    private void insert(Entry entry, @Nullable Rectangle bounds) {
+        entry.bounds = bounds;
+        if (bounds == null || getCellCount(bounds) > MAX_CELLS) {
+            unindexed.add(entry);
+            return;
+        }
+        forEachCell(bounds, key -> cells.computeIfAbsent(key, k -> new ArrayList<>()).add(entry));
+    }
+
+    private void delete(Entry entry) {
+        var bounds = entry.bounds;
+        if (bounds == null || getCellCount(bounds) > MAX_CELLS) {
+            unindexed.remove(entry);
+            return;
+        }
+        forEachCell(bounds, key -> {
+            var cell = cells.get(key);
+            cell.remove(entry);
+            if (cell.isEmpty()) {
+                cells.remove(key);
+            }
+        });
+    }
+
+    private static long getCellCount(Rectangle bounds) {
+        long columns = ((bounds.x + Math.max(bounds.width, 1) - 1) >> CELL_SHIFT) - (bounds.x >> CELL_SHIFT) + 1;
+        long rows    = ((bounds.y + Math.max(bounds.height, 1) - 1) >> CELL_SHIFT) - (bounds.y >> CELL_SHIFT) + 1;
+        return columns * rows;
+    }
+
+    private static void forEachCell(Rectangle bounds, LongConsumer action) {
+        int maxCellX = (bounds.x + Math.max(bounds.width, 1) - 1) >> CELL_SHIFT;
+        int maxCellY = (bounds.y + Math.max(bounds.height, 1) - 1) >> CELL_SHIFT;
+        for (int cellX = bounds.x >> CELL_SHIFT; cellX <= maxCellX; cellX++) {
+            for (int cellY = bounds.y >> CELL_SHIFT; cellY <= maxCellY; cellY++) {
+                action.accept(getKey(cellX, cellY));
+            }
+        }
+    }
+
+    private static long getKey(int cellX, int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+    }
+
+    private static final class Entry {
+        private final Marker    marker;
+        private final int       sequence;
+        @Nullable
+        private       Rectangle bounds;
+        private       int       stamp;
+
+        private Entry(Marker marker, int sequence) {
+            this.marker   = marker;
+            this.sequence = sequence;
+        }
+    }
+}
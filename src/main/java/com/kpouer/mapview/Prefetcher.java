@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview;
+
+import com.kpouer.mapview.tile.Tile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Guess the tiles that will be visible soon from the recent user actions.
+ * When the map is dragged, the tiles ahead of the motion are predicted from the drag velocity.
+ * The tiles of the upper zoom level are always wanted as they are cheap and can replace missing tiles, and the
+ * tiles of the lower zoom level are wanted when the user was zooming in.
+ *
+ * @author Matthieu Casanova
+ */
+class Prefetcher {
+    /**
+     * How far in the future the motion is extrapolated, in ms.
+     */
+    private static final long   LOOK_AHEAD      = 500;
+    /**
+     * The delay after which the last action is not considered anymore, in ms.
+     */
+    private static final long   ACTION_TIMEOUT  = 1000;
+    private static final int    MAX_TILES_AHEAD = 3;
+    /**
+     * The weight of the last drag event in the velocity.
+     */
+    private static final double SMOOTHING       = 0.5;
+
+    private double velocityX;
+    private double velocityY;
+    private long   lastDrag;
+    private int    zoomDirection;
+    private long   lastWheel;
+
+    /**
+     * Called when the map is dragged.
+     *
+     * @param dx   the horizontal translation of the view in pixels
+     * @param dy   the vertical translation of the view in pixels
+     * @param when the time of the event
+     */
+    void dragged(int dx, int dy, long when) {
+        long elapsed = when - lastDrag;
+        if (elapsed > ACTION_TIMEOUT) {
+            velocityX = 0;
+            velocityY = 0;
+        }
+        if (elapsed > 0) {
+            velocityX = SMOOTHING * dx / elapsed + (1 - SMOOTHING) * velocityX;
+            velocityY = SMOOTHING * dy / elapsed + (1 - SMOOTHING) * velocityY;
+        }
+        lastDrag = when;
+    }
+
+    /**
+     * Called when the zoom is changed with the mouse wheel.
+     *
+     * @param zoomDelta the zoom change, positive when zooming in
+     * @param when      the time of the event
+     */
+    void zoomed(int zoomDelta, long when) {
+        zoomDirection = Integer.signum(zoomDelta);
+        lastWheel     = when;
+    }
+
+    /**
+     * Returns the tiles to prefetch for a visible area, the most useful first.
+     *
+     * @param budget the maximum number of tiles
+     */
+    List<Tile> getTiles(int zoom, int minX, int minY, int maxX, int maxY, int minZoom, int maxZoom, int tilesSize, int budget) {
+        var  tiles = new ArrayList<Tile>();
+        long now   = System.currentTimeMillis();
+        if (now - lastDrag < ACTION_TIMEOUT) {
+            int aheadX = getTilesAhead(velocityX, tilesSize);
+            int aheadY = getTilesAhead(velocityY, tilesSize);
+            for (int i = 1; i <= Math.max(Math.abs(aheadX), Math.abs(aheadY)); i++) {
+                if (i <= Math.abs(aheadX)) {
+                    int x = aheadX > 0 ? maxX + i : minX - i;
+                    for (int y = minY - i; y <= maxY + i; y++) {
+                        tiles.add(new Tile(x, y, zoom));
+                    }
+                }
+                if (i <= Math.abs(aheadY)) {
+                    int y = aheadY > 0 ? maxY + i : minY - i;
+                    for (int x = minX - i; x <= maxX + i; x++) {
+                        tiles.add(new Tile(x, y, zoom));
+                    }
+                }
+            }
+        }
+        if (zoom > minZoom) {
+            for (int x = minX >> 1; x <= maxX >> 1; x++) {
+                for (int y = minY >> 1; y <= maxY >> 1; y++) {
+                    tiles.add(new Tile(x, y, zoom - 1));
+                }
+            }
+        }
+        if (zoom < maxZoom && zoomDirection > 0 && now - lastWheel < ACTION_TIMEOUT) {
+            // the area around the center at the next zoom level
+            int halfWidth  = (maxX - minX) / 2 + 1;
+            int halfHeight = (maxY - minY) / 2 + 1;
+            int centerX    = minX + maxX + 1;
+            int centerY    = minY + maxY + 1;
+            for (int x = centerX - halfWidth; x < centerX + halfWidth; x++) {
+                for (int y = centerY - halfHeight; y < centerY + halfHeight; y++) {
+                    tiles.add(new Tile(x, y, zoom + 1));
+                }
+            }
+        }
+        if (tiles.size() > budget) {
+            return new ArrayList<>(tiles.subList(0, budget));
+        }
+        return tiles;
+    }
+
+    private static int getTilesAhead(double velocity, int tilesSize) {
+        int ahead = (int) Math.ceil(Math.abs(velocity) * LOOK_AHEAD / tilesSize);
+        return (int) Math.signum(velocity) * Math.min(ahead, MAX_TILES_AHEAD);
+    }
+}
@@ -55,6 +55,11 @@ public boolean contains(Point point) {
             point.getY() < y + radius;
     }
 
+    @Override
+    public java.awt.Rectangle getBounds() {
+        return new java.awt.Rectangle(x - radius, y - radius, 2 * radius, 2 * radius);
+    }
+
     @Override
     public String toString() {
         return "Circle{" +
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.marker;
+
+import com.kpouer.mapview.tile.TilesTools;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+import static com.kpouer.mapview.tile.TilesTools.WORLD_BITS;
+
+/**
+ * A hierarchical cluster index of points, precomputed for a range of zoom levels.
+ * <p>
+ * At each zoom level the points are grouped in square cells of {@code cellSize} screen pixels, a cell containing
+ * points is a cluster positioned at the centroid of its points.
+ * The cell size is a power of two so the cells of a zoom level are made of 4 cells of the next zoom level: the points
+ * are sorted once along a Morton (Z-order) curve and every level is then built from the level below it in a single
+ * pass, the clusters of a cell being contiguous.
+ * A query visits only the cells of the requested area with a binary search each, its cost depends on the size of the
+ * area in pixels and not on the number of points.
+ * <p>
+ * The index is immutable, it can be built outside the EDT.
+ *
+ * @author Matthieu Casanova
+ */
+public class ClusterIndex {
+    /**
+     * The number of points projected at once while building the index.
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    @Getter
+    private final int     minZoom;
+    @Getter
+    private final int     maxZoom;
+    @Getter
+    private final int     cellSize;
+    @Getter
+    private final int     size;
+    private final int     tileSize;
+    private final Level[] levels;
+
+    /**
+     * Visits the clusters of a query.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * Called for each cluster.
+         *
+         * @param worldX the world x coordinate of the cluster
+         * @param worldY the world y coordinate of the cluster
+         * @param count  the number of points in the cluster
+         */
+        void visit(int worldX, int worldY, int count);
+    }
+
+    /**
+     * Build a cluster index.
+     *
+     * @param latitudes  the latitudes of the points
+     * @param longitudes the longitudes of the points
+     * @param offset     the index of the first point in the arrays
+     * @param length     the number of points
+     * @param minZoom    the lowest zoom level, usually {@code TileServer.getMinZoom()}
+     * @param maxZoom    the highest zoom level, usually {@code TileServer.getMaxZoom()}
+     * @param tileSize   the size of the tiles, a power of two
+     * @param cellSize   the size of the cells in screen pixels, rounded up to a power of two, at most 2^30
+     */
+    public ClusterIndex(double[] latitudes,
+                        double[] longitudes,
+                        int offset,
+                        int length,
+                        int minZoom,
+                        int maxZoom,
+                        int tileSize,
+                        int cellSize) {
+        if (minZoom < 0 || maxZoom < minZoom) {
+            throw new IllegalArgumentException("Invalid zoom range " + minZoom + '-' + maxZoom);
+        }
+        if (Integer.bitCount(tileSize) != 1) {
+            throw new IllegalArgumentException("The tile size must be a power of two " + tileSize);
+        }
+        if (cellSize <= 0 || cellSize > 1 << 30) {
+            throw new IllegalArgumentException("Invalid cell size " + cellSize);
+        }
+        this.minZoom  = minZoom;
+        this.maxZoom  = maxZoom;
+        this.tileSize = tileSize;
+        this.cellSize = cellSize == 1 ? 1 : Integer.highestOneBit(cellSize - 1) << 1;
+        size          = length;
+        var mortons = new long[length];
+        var worldX  = new int[Math.min(length, CHUNK_SIZE)];
+        var worldY  = new int[worldX.length];
+        for (int start = 0; start < length; start += CHUNK_SIZE) {
+            int count = Math.min(CHUNK_SIZE, length - start);
+            TilesTools.longitudesToWorld(longitudes, offset + start, worldX, 0, count);
+            TilesTools.latitudesToWorld(latitudes, offset + start, worldY, 0, count);
+            for (int i = 0; i < count; i++) {
+                // the poles and the antimeridian project out of the world, which would break the Morton order
+                mortons[start + i] = interleave(clipWorld(worldX[i]), clipWorld(worldY[i]));
+            }
+        }
+        Arrays.parallelSort(mortons);
+        levels = new Level[maxZoom - minZoom + 1];
+        var level = buildFromPoints(mortons, getCellBits(maxZoom));
+        levels[maxZoom - minZoom] = level;
+        for (int zoom = maxZoom - 1; zoom >= minZoom; zoom--) {
+            level                  = build(level, getCellBits(zoom));
+            levels[zoom - minZoom] = level;
+        }
+    }
+
+    /**
+     * Returns the number of clusters of a zoom level.
+     *
+     * @param zoom the zoom level, clipped to the index zoom range
+     * @return the number of clusters
+     */
+    public int getClusterCount(int zoom) {
+        return getLevel(zoom).size;
+    }
+
+    /**
+     * Visit the clusters of a zoom level in an area.
+     *
+     * @param zoom    the zoom level, clipped to the index zoom range
+     * @param minX    the minimum world x coordinate
+     * @param minY    the minimum world y coordinate
+     * @param maxX    the maximum world x coordinate
+     * @param maxY    the maximum world y coordinate
+     * @param visitor the visitor
+     */
+    public void query(int zoom, int minX, int minY, int maxX, int maxY, Visitor visitor) {
+        var level = getLevel(zoom);
+        if (level.size == 0 || maxX < minX || maxY < minY) {
+            return;
+        }
+        int  cellBits = level.cellBits;
+        long minCol   = Math.max(minX, 0) >> cellBits;
+        long minRow   = Math.max(minY, 0) >> cellBits;
+        long maxCol   = maxX >> cellBits;
+        long maxRow   = maxY >> cellBits;
+        if ((maxCol - minCol + 1) * (maxRow - minRow + 1) >= level.size) {
+            // the area is larger than the level, scanning it is cheaper
+            for (int i = 0; i < level.size; i++) {
+                int x = level.worldX[i];
+                int y = level.worldY[i];
+                if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                    visitor.visit(x, y, level.counts[i]);
+                }
+            }
+            return;
+        }
+        for (long row = minRow; row <= maxRow; row++) {
+            for (long col = minCol; col <= maxCol; col++) {
+                int index = Arrays.binarySearch(level.cells, 0, level.size, interleave((int) col, (int) row));
+                if (index >= 0) {
+                    visitor.visit(level.worldX[index], level.worldY[index], level.counts[index]);
+                }
+            }
+        }
+    }
+
+    private Level getLevel(int zoom) {
+        return levels[Math.min(Math.max(zoom, minZoom), maxZoom) - minZoom];
+    }
+
+    /**
+     * Returns the number of bits of the world coordinates covered by a cell at a zoom level.
+     * A cell larger than the world covers the world, so the shifts of the Morton codes stay below 64 bits.
+     */
+    private int getCellBits(int zoom) {
+        int pixelBits = WORLD_BITS - zoom - Integer.numberOfTrailingZeros(tileSize);
+        return Math.min(Math.max(0, pixelBits + Integer.numberOfTrailingZeros(cellSize)), WORLD_BITS);
+    }
+
+    private static Level buildFromPoints(long[] mortons, int cellBits) {
+        var level = new Level(cellBits, mortons.length);
+        int shift = 2 * cellBits;
+        int start = 0;
+        while (start < mortons.length) {
+            long cell = mortons[start] >>> shift;
+            long sumX = 0;
+            long sumY = 0;
+            int  end  = start;
+            while (end < mortons.length && mortons[end] >>> shift == cell) {
+                sumX += deinterleave(mortons[end]);
+                sumY += deinterleave(mortons[end] >>> 1);
+                end++;
+            }
+            int count = end - start;
+            level.add(cell, (int) (sumX / count), (int) (sumY / count), count);
+            start = end;
+        }
+        return level.trim();
+    }
+
+    private static Level build(Level child, int cellBits) {
+        var level = new Level(cellBits, child.size);
+        int shift = 2 * (cellBits - child.cellBits);
+        int start = 0;
+        while (start < child.size) {
+            long cell  = child.cells[start] >>> shift;
+            long sumX  = 0;
+            long sumY  = 0;
+            int  count = 0;
+            int  end   = start;
+            while (end < child.size && child.cells[end] >>> shift == cell) {
+                int childCount = child.counts[end];
+                sumX  += (long) child.worldX[end] * childCount;
+                sumY  += (long) child.worldY[end] * childCount;
+                count += childCount;
+                end++;
+            }
+            level.add(cell, (int) (sumX / count), (int) (sumY / count), count);
+            start = end;
+        }
+        return level.trim();
+    }
+
+    private static int clipWorld(int world) {
+        return Math.min(Math.max(world, 0), (1 << WORLD_BITS) - 1);
+    }
+
+    /**
+     * Returns the Morton code of two coordinates, the bits of x are at even positions.
+     */
+    static long interleave(int x, int y) {
+        return spread(x) | spread(y) << 1;
+    }
+
+    private static long spread(int value) {
+        long v = value & 0xFFFFFFFFL;
+        v = (v | v << 16) & 0x0000FFFF0000FFFFL;
+        v = (v | v << 8) & 0x00FF00FF00FF00FFL;
+        v = (v | v << 4) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | v << 2) & 0x3333333333333333L;
+        v = (v | v << 1) & 0x5555555555555555L;
+        return v;
+    }
+
+    /**
+     * Returns the coordinate stored in the even bits of a Morton code.
+     */
+    private static int deinterleave(long morton) {
+        long v = morton & 0x5555555555555555L;
+        v = (v | v >>> 1) & 0x3333333333333333L;
+        v = (v | v >>> 2) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | v >>> 4) & 0x00FF00FF00FF00FFL;
+        v = (v | v >>> 8) & 0x0000FFFF0000FFFFL;
+        v = (v | v >>> 16) & 0x00000000FFFFFFFFL;
+        return (int) v;
+    }
+
+    /**
+     * The clusters of a zoom level sorted by cell.
+     */
+    private static final class Level {
+        private final int    cellBits;
+        private       long[] cells;
+        private       int[]  worldX;
+        private       int[]  worldY;
+        private       int[]  counts;
+        private       int    size;
+
+        private Level(int cellBits, int capacity) {
+            this.cellBits = cellBits;
+            cells         = new long[capacity];
+            worldX        = new int[capacity];
+            worldY        = new int[capacity];
+            counts        = new int[capacity];
+        }
+
+        private void add(long cell, int x, int y, int count) {
+            cells[size]  = cell;
+            worldX[size] = x;
+            worldY[size] = y;
+            counts[size] = count;
+            size++;
+        }
+
+        private Level trim() {
+            cells  = Arrays.copyOf(cells, size);
+            worldX = Arrays.copyOf(worldX, size);
+            worldY = Arrays.copyOf(worldY, size);
+            counts = Arrays.copyOf(counts, size);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.marker;
+
+import com.kpouer.mapview.MapView;
+import lombok.Getter;
+
+import java.awt.*;
+
+/**
+ * A layer painting the clusters of a {@link ClusterIndex} for the current zoom level.
+ * A cluster of a single point is painted with the point style, the other clusters are painted as a disc growing with
+ * the number of points, with the number of points written inside.
+ * Only the clusters of the visible cells are painted.
+ *
+ * @author Matthieu Casanova
+ */
+public class ClusterLayer implements Layer {
+    @Getter
+    private final ClusterIndex clusterIndex;
+    private final PointStyle   pointStyle;
+    private final Color        clusterColor;
+    private final Color        textColor;
+
+    /**
+     * Create a cluster layer.
+     *
+     * @param clusterIndex the cluster index, usually built for the zoom levels of the tile server
+     * @param pointStyle   the style of the clusters of a single point
+     * @param clusterColor the color of the clusters
+     * @param textColor    the color of the number of points of the clusters
+     */
+    public ClusterLayer(ClusterIndex clusterIndex, PointStyle pointStyle, Color clusterColor, Color textColor) {
+        this.clusterIndex = clusterIndex;
+        this.pointStyle   = pointStyle;
+        this.clusterColor = clusterColor;
+        this.textColor    = textColor;
+    }
+
+    @Override
+    public void paint(Graphics2D g, MapView mapView) {
+        var tilesTools = mapView.getTilesTools();
+        int zoom       = mapView.getZoom();
+        int originX    = mapView.worldXToPointScreen(0);
+        int originY    = mapView.worldYToPointScreen(0);
+        // the clusters are painted around their centroid, the area is enlarged so the clusters of the border cells
+        // are painted too
+        int margin     = clusterIndex.getCellSize();
+        int minX       = tilesTools.pointToWorld(-originX - margin, zoom);
+        int minY       = tilesTools.pointToWorld(-originY - margin, zoom);
+        int maxX       = tilesTools.pointToWorld(mapView.getWidth() - originX + margin, zoom);
+        int maxY       = tilesTools.pointToWorld(mapView.getHeight() - originY + margin, zoom);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        var fontMetrics = g.getFontMetrics();
+        clusterIndex.query(zoom, minX, minY, maxX, maxY, (worldX, worldY, count) -> {
+            int x = tilesTools.worldToPoint(worldX, zoom) + originX;
+            int y = tilesTools.worldToPoint(worldY, zoom) + originY;
+            if (count == 1) {
+                int size = pointStyle.getSize();
+                g.setColor(pointStyle.getColor());
+                if (pointStyle.isRound()) {
+                    g.fillOval(x - size / 2, y - size / 2, size, size);
+                } else {
+                    g.fillRect(x - size / 2, y - size / 2, size, size);
+                }
+                return;
+            }
+            int diameter = getDiameter(count);
+            g.setColor(clusterColor);
+            g.fillOval(x - diameter / 2, y - diameter / 2, diameter, diameter);
+            var text = Integer.toString(count);
+            int textWidth = fontMetrics.stringWidth(text);
+            if (textWidth < diameter) {
+                g.setColor(textColor);
+                g.drawString(text, x - textWidth / 2, y + (fontMetrics.getAscent() - fontMetrics.getDescent()) / 2);
+            }
+        });
+    }
+
+    /**
+     * Returns the diameter of a cluster, it grows with the logarithm of the number of points up to the cell size.
+     */
+    private int getDiameter(int count) {
+        int cellSize = clusterIndex.getCellSize();
+        int diameter = 16 + (int) (Math.log10(count) * 8);
+        return Math.min(diameter, Math.max(cellSize, pointStyle.getSize()));
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.marker;
+
+import com.kpouer.mapview.MapView;
+
+import java.awt.*;
+
+/**
+ * A layer painting many items at once over the tiles, below the markers.
+ * Layers are painted in the EDT and must be modified in the EDT.
+ *
+ * @author Matthieu Casanova
+ */
+@FunctionalInterface
+public interface Layer {
+    /**
+     * Paint the layer.
+     *
+     * @param g       the graphics
+     * @param mapView the map view, it gives the zoom level and converts world coordinates to screen coordinates
+     */
+    void paint(Graphics2D g, MapView mapView);
+}
@@ -16,6 +16,9 @@
 package com.kpouer.mapview.marker;
 
 import com.kpouer.mapview.MapView;
+import com.kpouer.mapview.tile.TilesTools;
+import jakarta.annotation.Nullable;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -32,6 +35,13 @@
 public abstract class Marker {
     protected double              longitude;
     protected double              latitude;
+    /**
+     * The world coordinates of the marker, see {@link TilesTools}.
+     */
+    @Setter(AccessLevel.NONE)
+    protected int                 worldX;
+    @Setter(AccessLevel.NONE)
+    protected int                 worldY;
     protected int                 x;
     protected int                 y;
     protected Color               color;
@@ -43,6 +53,18 @@ protected Marker(double latitude, double longitude, Color color) {
         this.longitude = longitude;
         this.latitude  = latitude;
         this.color     = color;
+        worldX         = TilesTools.longitudeToWorld(longitude);
+        worldY         = TilesTools.latitudeToWorld(latitude);
+    }
+
+    public void setLongitude(double longitude) {
+        this.longitude = longitude;
+        worldX         = TilesTools.longitudeToWorld(longitude);
+    }
+
+    public void setLatitude(double latitude) {
+        this.latitude = latitude;
+        worldY        = TilesTools.latitudeToWorld(latitude);
     }
 
     public void addMouseListener(MouseListener mouseListener) {
@@ -112,13 +134,26 @@ public void setLocation(int x, int y) {
     public abstract boolean contains(Point e);
 
     /**
-     * Compute the location of the marker on the screen.
-     * It is called by the map view when the map is moved or zoomed.
+     * Returns the area painted by the marker on the screen, as of the last {@link #computeLocation(MapView)}.
+     * The map view uses it to skip the markers that are out of the screen or far from the mouse.
+     * The default implementation returns null, the marker is then always painted and tested.
+     *
+     * @return the bounds of the marker or null if they are unknown
+     */
+    @Nullable
+    public java.awt.Rectangle getBounds() {
+        return null;
+    }
+
+    /**
+     * Compute the location of the marker on the screen from its world coordinates.
+     * It is called by the map view when the map was moved or zoomed, before the marker is painted or tested with the
+     * mouse, so the location of a marker out of the screen may be outdated.
      * @param mapView the map view
      */
     public void computeLocation(MapView mapView) {
-        int x = mapView.longitudeToPointScreen(longitude);
-        int y = mapView.latitudeToPointScreen(latitude);
+        int x = mapView.worldXToPointScreen(worldX);
+        int y = mapView.worldYToPointScreen(worldY);
         setLocation(x, y);
     }
 }
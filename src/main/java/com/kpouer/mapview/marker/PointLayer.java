@@ -0,0 +1,317 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.marker;
+
+import com.kpouer.mapview.MapView;
+import com.kpouer.mapview.tile.TilesTools;
+import jakarta.annotation.Nullable;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A layer of points stored in primitive columns, to paint millions of points with a small heap.
+ * <p>
+ * Each point takes 8 bytes of world coordinates, see {@link TilesTools}, and one more byte once a point uses a style
+ * other than the first one. The positions are therefore rounded to about 4 cm.
+ * The paint loop does not allocate: the points are written directly in the pixels of an image reused between paints,
+ * which is then drawn at once. The image is rendered again only when the zoom level, the position, the size of the
+ * view or the points changed. The points farther out of the screen than their half size are skipped, and only the
+ * first point centered on each screen pixel is painted so the cost stays bounded at low zoom levels. Translucent
+ * colors are not blended between points, only with the map.
+ *
+ * @author Matthieu Casanova
+ */
+public class PointLayer implements Layer {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_STYLES       = 256;
+
+    private final List<PointStyle> styles;
+    private       int[]            worldX;
+    private       int[]            worldY;
+    /**
+     * The style index of each point, null while all points use the first style.
+     */
+    private       byte[]           styleIndexes;
+    private       int              size;
+    /**
+     * The points are drawn in this image, reused between paints.
+     */
+    @Nullable
+    private       BufferedImage    image;
+    private       int[]            pixels;
+    /**
+     * The pixels where a point was already painted during a paint.
+     */
+    private       long[]           paintedPixels;
+    /**
+     * Incremented when the points change, so the image is rendered again.
+     */
+    private       int              version;
+    /**
+     * The state the image was rendered for.
+     */
+    private       int              renderedVersion;
+    private       int              renderedZoom;
+    private       int              renderedOriginX;
+    private       int              renderedOriginY;
+
+    /**
+     * Create a point layer.
+     *
+     * @param defaultStyle the style of index 0
+     */
+    public PointLayer(PointStyle defaultStyle) {
+        styles = new ArrayList<>();
+        styles.add(defaultStyle);
+        worldX = new int[INITIAL_CAPACITY];
+        worldY = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Add a style.
+     *
+     * @param style the style
+     * @return the index of the style
+     */
+    public int addStyle(PointStyle style) {
+        if (styles.size() == MAX_STYLES) {
+            throw new IllegalStateException("A point layer cannot have more than " + MAX_STYLES + " styles");
+        }
+        styles.add(style);
+        return styles.size() - 1;
+    }
+
+    public void add(double latitude, double longitude) {
+        add(latitude, longitude, 0);
+    }
+
+    public void add(double latitude, double longitude, int style) {
+        ensureCapacity(size + 1);
+        worldX[size] = TilesTools.longitudeToWorld(longitude);
+        worldY[size] = TilesTools.latitudeToWorld(latitude);
+        setStyle(size, style);
+        size++;
+        version++;
+    }
+
+    /**
+     * Add points with the first style.
+     *
+     * @param latitudes  the latitudes
+     * @param longitudes the longitudes
+     * @param offset     the index of the first point in the arrays
+     * @param length     the number of points
+     */
+    public void addAll(double[] latitudes, double[] longitudes, int offset, int length) {
+        addAll(latitudes, longitudes, null, offset, length);
+    }
+
+    /**
+     * Add points.
+     *
+     * @param latitudes   the latitudes
+     * @param longitudes  the longitudes
+     * @param pointStyles the style indexes, or null to use the first style
+     * @param offset      the index of the first point in the arrays
+     * @param length      the number of points
+     */
+    public void addAll(double[] latitudes, double[] longitudes, @Nullable byte[] pointStyles, int offset, int length) {
+        ensureCapacity(size + length);
+        TilesTools.longitudesToWorld(longitudes, offset, worldX, size, length);
+        TilesTools.latitudesToWorld(latitudes, offset, worldY, size, length);
+        if (pointStyles != null) {
+            for (int i = 0; i < length; i++) {
+                setStyle(size + i, pointStyles[offset + i] & 0xFF);
+            }
+        } else if (styleIndexes != null) {
+            Arrays.fill(styleIndexes, size, size + length, (byte) 0);
+        }
+        size += length;
+        version++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+        version++;
+    }
+
+    /**
+     * Release the memory of unused capacity.
+     */
+    public void trimToSize() {
+        worldX = Arrays.copyOf(worldX, size);
+        worldY = Arrays.copyOf(worldY, size);
+        if (styleIndexes != null) {
+            styleIndexes = Arrays.copyOf(styleIndexes, size);
+        }
+    }
+
+    public double getLatitude(int index) {
+        checkIndex(index);
+        return TilesTools.worldToLatitude(worldY[index]);
+    }
+
+    public double getLongitude(int index) {
+        checkIndex(index);
+        return TilesTools.worldToLongitude(worldX[index]);
+    }
+
+    public int getStyle(int index) {
+        checkIndex(index);
+        return styleIndexes == null ? 0 : styleIndexes[index] & 0xFF;
+    }
+
+    @Override
+    public void paint(Graphics2D g, MapView mapView) {
+        int width  = mapView.getWidth();
+        int height = mapView.getHeight();
+        if (width <= 0 || height <= 0 || size == 0) {
+            return;
+        }
+        int zoom    = mapView.getZoom();
+        // the screen coordinates of the world origin
+        int originX = mapView.worldXToPointScreen(0);
+        int originY = mapView.worldYToPointScreen(0);
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            image         = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            pixels        = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            paintedPixels = new long[(int) (((long) width * height + 63) >> 6)];
+        } else if (renderedVersion == version &&
+            renderedZoom == zoom &&
+            renderedOriginX == originX &&
+            renderedOriginY == originY) {
+            g.drawImage(image, 0, 0, null);
+            return;
+        } else {
+            Arrays.fill(pixels, 0);
+            Arrays.fill(paintedPixels, 0L);
+        }
+        render(mapView.getTilesTools(), zoom, originX, originY, width, height);
+        renderedVersion = version;
+        renderedZoom    = zoom;
+        renderedOriginX = originX;
+        renderedOriginY = originY;
+        g.drawImage(image, 0, 0, null);
+    }
+
+    /**
+     * Render the points in the pixels of the image.
+     */
+    private void render(TilesTools tilesTools, int zoom, int originX, int originY, int width, int height) {
+        int margin = 0;
+        for (var pointStyle : styles) {
+            margin = Math.max(margin, pointStyle.getSize() / 2);
+        }
+        int     current    = -1;
+        int     argb       = 0;
+        int     pointSize  = 0;
+        int     half       = 0;
+        boolean round      = false;
+        for (int i = 0; i < size; i++) {
+            int x = tilesTools.worldToPoint(worldX[i], zoom) + originX;
+            int y = tilesTools.worldToPoint(worldY[i], zoom) + originY;
+            if (x < -margin || y < -margin || x >= width + margin || y >= height + margin) {
+                continue;
+            }
+            boolean onScreen = x >= 0 && y >= 0 && x < width && y < height;
+            int     pixel    = y * width + x;
+            if (onScreen) {
+                if ((paintedPixels[pixel >> 6] & (1L << pixel)) != 0) {
+                    continue;
+                }
+                paintedPixels[pixel >> 6] |= 1L << pixel;
+            }
+            int style = styleIndexes == null ? 0 : styleIndexes[i] & 0xFF;
+            if (style != current) {
+                current = style;
+                var pointStyle = styles.get(style);
+                argb      = pointStyle.getColor().getRGB();
+                pointSize = pointStyle.getSize();
+                half      = pointSize / 2;
+                round     = pointStyle.isRound();
+            }
+            if (pointSize <= 1) {
+                if (onScreen) {
+                    pixels[pixel] = argb;
+                }
+            } else {
+                // fill clips the part of the point out of the screen
+                fill(x - half, y - half, pointSize, round, argb, width, height);
+            }
+        }
+    }
+
+    /**
+     * Fill a square or a disc in the pixels.
+     */
+    private void fill(int left, int top, int pointSize, boolean round, int argb, int width, int height) {
+        int minY = Math.max(top, 0);
+        int maxY = Math.min(top + pointSize, height);
+        int minX = Math.max(left, 0);
+        int maxX = Math.min(left + pointSize, width);
+        int r2   = pointSize * pointSize;
+        for (int y = minY; y < maxY; y++) {
+            // the distances are doubled to keep the center of the point an integer
+            int dy   = 2 * (y - top) - pointSize + 1;
+            int line = y * width;
+            for (int x = minX; x < maxX; x++) {
+                int dx = 2 * (x - left) - pointSize + 1;
+                if (!round || dx * dx + dy * dy <= r2) {
+                    pixels[line + x] = argb;
+                }
+            }
+        }
+    }
+
+    private void setStyle(int index, int style) {
+        if (style < 0 || style >= styles.size()) {
+            throw new IllegalArgumentException("Unknown style " + style);
+        }
+        if (styleIndexes == null) {
+            if (style == 0) {
+                return;
+            }
+            styleIndexes = new byte[worldX.length];
+        }
+        styleIndexes[index] = (byte) style;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > worldX.length) {
+            int newCapacity = Math.max(capacity, worldX.length + (worldX.length >> 1));
+            worldX = Arrays.copyOf(worldX, newCapacity);
+            worldY = Arrays.copyOf(worldY, newCapacity);
+            if (styleIndexes != null) {
+                styleIndexes = Arrays.copyOf(styleIndexes, newCapacity);
+            }
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+    }
+}
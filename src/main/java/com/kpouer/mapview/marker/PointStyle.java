@@ -0,0 +1,42 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.marker;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.awt.*;
+
+/**
+ * The style of the points of a {@link PointLayer}.
+ *
+ * @author Matthieu Casanova
+ */
+@AllArgsConstructor
+@Getter
+@ToString
+public class PointStyle {
+    private final Color   color;
+    /**
+     * The size of the point in pixels.
+     */
+    private final int     size;
+    /**
+     * True to paint a disc, false to paint a square which is faster.
+     */
+    private final boolean round;
+}
@@ -16,6 +16,7 @@
 package com.kpouer.mapview.marker;
 
 import com.kpouer.mapview.MapView;
+import com.kpouer.mapview.tile.TilesTools;
 import com.kpouer.wkt.shape.Polygon;
 import lombok.Getter;
 import lombok.Setter;
@@ -26,14 +27,40 @@
 import static java.awt.RenderingHints.VALUE_ANTIALIAS_ON;
 
 /**
+ * A polygon marker.
+ * <p>
+ * Large polygons are simplified for each zoom level with the Douglas-Peucker algorithm, the vertices that move the
+ * outline by less than half a pixel are not projected, painted or hit-tested. The importance of every vertex is
+ * computed once when the polygon is first located, the vertices of a zoom level are then selected lazily and cached.
+ *
  * @since 1.2.0
  * @author Matthieu Casanova
  */
 public class PolygonMarker extends Marker {
-    private final Polygon polygon;
-    private final int[] xpoints;
-    private final int[] ypoints;
-    private final int   width;
+    /**
+     * The maximum distance in pixels between the outline and a removed vertex.
+     */
+    private static final double TOLERANCE = 0.5;
+
+    /**
+     * The world coordinates of the points.
+     */
+    private final int[]   worldXpoints;
+    private final int[]   worldYpoints;
+    private final int     worldCenterX;
+    private final int     worldCenterY;
+    /**
+     * The simplification distance in world coordinates of each point, computed lazily.
+     */
+    private       float[] importance;
+    /**
+     * The indexes of the points kept for each zoom level, computed lazily.
+     */
+    private final int[][] simplified;
+    private final int[]   xpoints;
+    private final int[]   ypoints;
+    private       int     npoints;
+    private final int     width;
     @Setter
     @Getter
     private Color borderColor;
@@ -50,9 +77,21 @@ public class PolygonMarker extends Marker {
      */
     public PolygonMarker(Polygon polygon, int width, Color color, boolean filled) {
         super(polygon.getBarycenter().getY(), polygon.getBarycenter().getX(), color);
-        this.polygon = polygon;
         xpoints = new int[polygon.getNpoints()];
         ypoints = new int[polygon.getNpoints()];
+        worldXpoints = new int[polygon.getNpoints()];
+        worldYpoints = new int[polygon.getNpoints()];
+        long sumX = 0;
+        long sumY = 0;
+        TilesTools.longitudesToWorld(polygon.getXpoints(), 0, worldXpoints, 0, worldXpoints.length);
+        TilesTools.latitudesToWorld(polygon.getYpoints(), 0, worldYpoints, 0, worldYpoints.length);
+        for (int i = 0; i < worldXpoints.length; i++) {
+            sumX += worldXpoints[i];
+            sumY += worldYpoints[i];
+        }
+        worldCenterX = worldXpoints.length == 0 ? 0 : (int) (sumX / worldXpoints.length);
+        worldCenterY = worldYpoints.length == 0 ? 0 : (int) (sumY / worldYpoints.length);
+        simplified = new int[TilesTools.WORLD_BITS + 1][];
         this.width = width;
         borderColor = new Color(color.getRed(), color.getGreen(), color.getBlue(), 255);
         this.filled = filled;
@@ -66,31 +105,144 @@ public void paint(Graphics g) {
         graphics2D.setStroke(new BasicStroke(width));
         graphics2D.setRenderingHint(KEY_ANTIALIASING, VALUE_ANTIALIAS_ON);
         if (filled) {
-            g.fillPolygon(xpoints, ypoints, xpoints.length);
+            g.fillPolygon(xpoints, ypoints, npoints);
             g.setColor(borderColor);
-            g.drawPolygon(xpoints, ypoints, xpoints.length);
+            g.drawPolygon(xpoints, ypoints, npoints);
         } else {
-            g.drawPolygon(xpoints, ypoints, xpoints.length);
+            g.drawPolygon(xpoints, ypoints, npoints);
         }
     }
 
     @Override
     public boolean contains(Point e) {
-        var tmpPolygon = new java.awt.Polygon(xpoints, ypoints, xpoints.length);
+        var tmpPolygon = new java.awt.Polygon(xpoints, ypoints, npoints);
         return tmpPolygon.contains(e.x, e.y);
     }
 
+    @Override
+    public java.awt.Rectangle getBounds() {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < npoints; i++) {
+            minX = Math.min(minX, xpoints[i]);
+            minY = Math.min(minY, ypoints[i]);
+            maxX = Math.max(maxX, xpoints[i]);
+            maxY = Math.max(maxY, ypoints[i]);
+        }
+        // the border is centered on the outline, and a removed vertex is at most half a pixel out of it
+        int margin = width / 2 + 2;
+        return new java.awt.Rectangle(minX - margin, minY - margin, maxX - minX + 2 * margin, maxY - minY + 2 * margin);
+    }
+
     @Override
     public void computeLocation(MapView mapView) {
         super.computeLocation(mapView);
-        int x = 0;
-        int y = 0;
-        for (int i = 0;i<xpoints.length;i++) {
-            xpoints[i] = mapView.longitudeToPointScreen(polygon.getXpoints()[i]);
-            ypoints[i] = mapView.latitudeToPointScreen(polygon.getYpoints()[i]);
-            x += xpoints[i];
-            y += ypoints[i];
+        if (worldXpoints.length == 0) {
+            return;
+        }
+        var indexes = getSimplified(mapView.getZoom(), mapView.getTilesTools().getTileSize());
+        npoints = indexes.length;
+        for (int i = 0; i < npoints; i++) {
+            int index = indexes[i];
+            xpoints[i] = mapView.worldXToPointScreen(worldXpoints[index]);
+            ypoints[i] = mapView.worldYToPointScreen(worldYpoints[index]);
+        }
+        setLocation(mapView.worldXToPointScreen(worldCenterX), mapView.worldYToPointScreen(worldCenterY));
+    }
+
+    /**
+     * Returns the number of points painted at the current zoom level.
+     *
+     * @return the number of points
+     */
+    public int getPaintedPointCount() {
+        return npoints;
+    }
+
+    /**
+     * Returns the indexes of the points kept at a zoom level.
+     */
+    private int[] getSimplified(int zoom, int tileSize) {
+        var indexes = simplified[zoom];
+        if (indexes == null) {
+            if (importance == null) {
+                importance = computeImportance(worldXpoints, worldYpoints);
+            }
+            double tolerance = TOLERANCE * (1L << (TilesTools.WORLD_BITS - zoom)) / tileSize;
+            int    count     = 0;
+            for (float value : importance) {
+                if (value > tolerance) {
+                    count++;
+                }
+            }
+            indexes = new int[count];
+            count   = 0;
+            for (int i = 0; i < importance.length; i++) {
+                if (importance[i] > tolerance) {
+                    indexes[count++] = i;
+                }
+            }
+            simplified[zoom] = indexes;
+        }
+        return indexes;
+    }
+
+    /**
+     * Run the Douglas-Peucker algorithm once and returns for each point the largest tolerance for which it is kept.
+     * A point is never more important than the point that split its range, so the points kept for a tolerance are
+     * the ones whose importance is above it.
+     */
+    static float[] computeImportance(int[] xs, int[] ys) {
+        int n          = xs.length;
+        var importance = new float[n];
+        importance[0]     = Float.POSITIVE_INFINITY;
+        importance[n - 1] = Float.POSITIVE_INFINITY;
+        // the ranges to split, as pairs of start and end indexes
+        var stack = new int[Math.max(2, 2 * n)];
+        int top   = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        while (top > 0) {
+            int end   = stack[--top];
+            int start = stack[--top];
+            if (end - start < 2) {
+                continue;
+            }
+            int    farthest = -1;
+            double distance = -1;
+            for (int i = start + 1; i < end; i++) {
+                double d = getSquaredDistance(xs[i], ys[i], xs[start], ys[start], xs[end], ys[end]);
+                if (d > distance) {
+                    distance = d;
+                    farthest = i;
+                }
+            }
+            double limit = Math.min(importance[start], importance[end]);
+            importance[farthest] = (float) Math.min(Math.sqrt(distance), limit);
+            stack[top++] = start;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = end;
+        }
+        return importance;
+    }
+
+    /**
+     * Returns the squared distance between a point and a segment.
+     */
+    private static double getSquaredDistance(double x, double y, double x1, double y1, double x2, double y2) {
+        double dx     = x2 - x1;
+        double dy     = y2 - y1;
+        double length = dx * dx + dy * dy;
+        if (length > 0) {
+            double t = Math.min(1, Math.max(0, ((x - x1) * dx + (y - y1) * dy) / length));
+            x1 += t * dx;
+            y1 += t * dy;
         }
-        setLocation(x / xpoints.length, y / ypoints.length);
+        dx = x - x1;
+        dy = y - y1;
+        return dx * dx + dy * dy;
     }
 }
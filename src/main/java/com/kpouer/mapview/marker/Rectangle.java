@@ -49,6 +49,11 @@ public boolean contains(Point point) {
             point.getY() < y + height / 2;
     }
 
+    @Override
+    public java.awt.Rectangle getBounds() {
+        return new java.awt.Rectangle(x - width / 2, y - height / 2, width, height);
+    }
+
     @Override
     public String toString() {
         return "Rectangle{" +
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An additive increase / multiplicative decrease limit of the downloads in progress.
+ * The limit grows by one per round trip while the downloads use it and the recent latency stays close to the long
+ * term latency. It is halved when the server signals an overload and reduced when the latency rises, at most once per
+ * round trip.
+ *
+ * @author Matthieu Casanova
+ */
+final class ConcurrencyLimiter {
+    private static final int    INITIAL_LIMIT      = 4;
+    private static final double OVERLOAD_BACKOFF   = 0.5;
+    private static final double LATENCY_BACKOFF    = 0.9;
+    /**
+     * The latency is considered rising when the recent latency exceeds the long term latency by this ratio.
+     */
+    private static final double LATENCY_TOLERANCE  = 2.0;
+    private static final double LATENCY_SMOOTHING  = 0.2;
+    private static final double BASELINE_SMOOTHING = 0.02;
+    private static final long   THROUGHPUT_WINDOW  = TimeUnit.SECONDS.toNanos(1);
+
+    private final int    minLimit;
+    private final int    maxLimit;
+    private       double limit;
+    /**
+     * The recent latency in ns.
+     */
+    private       double latency;
+    /**
+     * The long term latency in ns.
+     */
+    private       double baseline;
+    private       long   lastDecrease;
+    private       long   windowStart;
+    private       int    windowCount;
+    private       double throughput;
+    private       long   responseCount;
+    private       long   overloadCount;
+
+    ConcurrencyLimiter(int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        limit         = Math.max(minLimit, Math.min(maxLimit, INITIAL_LIMIT));
+        windowStart   = System.nanoTime();
+        lastDecrease  = windowStart;
+    }
+
+    /**
+     * Record a response.
+     *
+     * @param latency  the duration of the download in ns
+     * @param inFlight the number of downloads in progress, including this one
+     * @param now      the current time in ns
+     */
+    synchronized void onResponse(long latency, int inFlight, long now) {
+        countResponse(now);
+        if (baseline == 0) {
+            this.latency = latency;
+            baseline     = latency;
+        } else {
+            this.latency += (latency - this.latency) * LATENCY_SMOOTHING;
+            baseline     += (latency - baseline) * BASELINE_SMOOTHING;
+        }
+        if (this.latency > baseline * LATENCY_TOLERANCE) {
+            decrease(LATENCY_BACKOFF, now);
+        } else if (inFlight >= (int) limit) {
+            // only grow when the limit is what bounds the downloads
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Record an overload signal: a 429 or 503 response, or no response at all.
+     *
+     * @param now the current time in ns
+     */
+    synchronized void onOverload(long now) {
+        countResponse(now);
+        overloadCount++;
+        decrease(OVERLOAD_BACKOFF, now);
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    int getMaxLimit() {
+        return maxLimit;
+    }
+
+    synchronized FetchStats getStats(int inFlight) {
+        long   now               = System.nanoTime();
+        double currentThroughput = now - windowStart > 2 * THROUGHPUT_WINDOW ? 0 : throughput;
+        return new FetchStats((int) limit,
+                              maxLimit,
+                              inFlight,
+                              currentThroughput,
+                              latency / TimeUnit.MILLISECONDS.toNanos(1),
+                              responseCount,
+                              overloadCount);
+    }
+
+    private void decrease(double ratio, long now) {
+        if (now - lastDecrease < latency) {
+            // the previous decrease has not had an effect yet
+            return;
+        }
+        limit        = Math.max(minLimit, limit * ratio);
+        lastDecrease = now;
+    }
+
+    private void countResponse(long now) {
+        responseCount++;
+        windowCount++;
+        long elapsed = now - windowStart;
+        if (elapsed >= THROUGHPUT_WINDOW) {
+            throughput  = windowCount * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+            windowStart = now;
+            windowCount = 0;
+        }
+    }
+}
@@ -15,24 +15,59 @@
  */
 package com.kpouer.mapview.tile;
 
+import com.kpouer.mapview.tile.cache.EncodedTile;
 import com.kpouer.mapview.tile.cache.ImageCache;
+import com.kpouer.mapview.tile.cache.TileMetadata;
 import jakarta.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * A tile server downloading the tiles from url patterns.
+ * When a tile read from the cache has expired according to its HTTP headers it is displayed anyway and revalidated
+ * in background with a conditional request, at the lowest priority. An expired tile without ETag nor Last-Modified is
+ * downloaded again instead.
+ * <p>
+ * Missing tiles (404, 410, empty or undecodable) and tiles failing after all retries are remembered for a while and
+ * not requested again meanwhile. Transient errors (no response, 408, 429, 5xx) are retried with an exponential
+ * backoff.
+ * <p>
+ * The number of downloads in progress adapts between 1 and the maximum concurrency of the {@link TileFetcher}, bounded
+ * by its concurrency per host times the number of hosts of the url patterns: it grows while the latency stays flat
+ * and is cut on 429 and 503 responses or when the latency rises. A download uses the next url pattern whose host
+ * can start it, so the tiles wait in the scheduler, where they are ordered and dropped, rather than in the fetcher.
+ *
  * @author Matthieu Casanova
  */
+@Slf4j
 public class DefaultTileServer implements TileServer {
+    private static final long MISSING_TTL       = TimeUnit.MINUTES.toMillis(10);
+    private static final long ERROR_TTL         = TimeUnit.MINUTES.toMillis(1);
+    private static final int  MAX_RETRIES       = 5;
+    private static final long BASE_RETRY_DELAY  = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY_DELAY   = TimeUnit.SECONDS.toMillis(30);
+    private static final int  MAX_FAILURES      = 10_000;
+    private static final int  TOO_MANY_REQUESTS = 429;
+
     private final int tilesSize;
     private final int minZoom;
     private final int maxZoom;
@@ -40,74 +75,486 @@ public class DefaultTileServer implements TileServer {
     private final ImageCache imageCache;
     private final String[]   urlPatterns;
 
-    private final ExecutorService executorService;
-    private       int             urlPatternIndex;
-    private final Set<Tile>       retrieveQueue;
+    private final TileFetcher              fetcher;
+    /**
+     * The thread starting the downloads chosen by the scheduler.
+     */
+    private final ExecutorService          dispatcher;
+    private final TileScheduler            scheduler;
+    private final ConcurrencyLimiter       limiter;
+    /**
+     * Disk reads and decoding are done in this thread so the paint thread never waits for them.
+     */
+    private final ExecutorService          diskLoader;
+    private       int                      urlPatternIndex;
+    private final Set<Tile>                retrieveQueue;
+    /**
+     * The expired tiles waiting for revalidation with their cached metadata.
+     */
+    private final Map<Tile, TileMetadata>  revalidations;
+    /**
+     * The failed tiles, the oldest failures are forgotten first, guarded by itself.
+     */
+    private final Map<Tile, TileFailure>   failures;
+    private final ScheduledExecutorService retryTimer;
 
+    private final List<TileListener> listeners;
+
+    /**
+     * Create a tile server downloading the tiles with {@link HttpURLConnection}.
+     *
+     * @param tilesSize   the size of the tiles
+     * @param minZoom     the minimum zoom level
+     * @param maxZoom     the maximum zoom level
+     * @param threadCount the number of download threads, it is the maximum number of downloads in progress
+     * @param imageCache  the image cache
+     * @param urlPatterns the url patterns of the tiles, ${z}, ${x} and ${y} are replaced by the tile coordinates
+     */
     public DefaultTileServer(int tilesSize,
                              int minZoom,
                              int maxZoom,
                              int threadCount,
                              ImageCache imageCache,
                              String... urlPatterns) {
+        this(tilesSize, minZoom, maxZoom, new UrlConnectionTileFetcher(threadCount), imageCache, urlPatterns);
+    }
+
+    /**
+     * Create a tile server.
+     *
+     * @param tilesSize   the size of the tiles
+     * @param minZoom     the minimum zoom level
+     * @param maxZoom     the maximum zoom level
+     * @param fetcher     the fetcher downloading the tiles
+     * @param imageCache  the image cache
+     * @param urlPatterns the url patterns of the tiles, ${z}, ${x} and ${y} are replaced by the tile coordinates
+     */
+    public DefaultTileServer(int tilesSize,
+                             int minZoom,
+                             int maxZoom,
+                             TileFetcher fetcher,
+                             ImageCache imageCache,
+                             String... urlPatterns) {
         this.tilesSize   = tilesSize;
         this.minZoom     = minZoom;
         this.maxZoom     = maxZoom;
         this.urlPatterns = urlPatterns.clone();
         this.imageCache  = imageCache;
-        executorService  = Executors.newFixedThreadPool(threadCount);
+        this.fetcher     = fetcher;
+        dispatcher       = Executors.newSingleThreadExecutor();
+        limiter          = new ConcurrencyLimiter(1, getMaxConcurrency(fetcher, this.urlPatterns));
+        scheduler        = new TileScheduler(limiter.getLimit());
+        diskLoader       = Executors.newSingleThreadExecutor();
         retrieveQueue    = new HashSet<>();
+        revalidations    = new ConcurrentHashMap<>();
+        failures         = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Tile, TileFailure> eldest) {
+                return size() > MAX_FAILURES;
+            }
+        };
+        retryTimer       = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "DefaultTileServer-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        listeners        = new CopyOnWriteArrayList<>();
+        dispatcher.execute(this::dispatchLoop);
     }
 
+    /**
+     * Returns the maximum number of downloads in progress, so that no download waits for its host in the fetcher.
+     */
+    private static int getMaxConcurrency(TileFetcher fetcher, String[] urlPatterns) {
+        var hosts = new HashSet<String>();
+        for (var urlPattern : urlPatterns) {
+            try {
+                hosts.add(String.valueOf(URI.create(getTileUrl(urlPattern, new Tile(0, 0, 0))).getHost()));
+            } catch (IllegalArgumentException e) {
+                // the fetcher will reject it anyway
+                hosts.add(urlPattern);
+            }
+        }
+        long perHosts = (long) fetcher.getMaxConcurrencyPerHost() * hosts.size();
+        return (int) Math.max(1, Math.min(fetcher.getMaxConcurrency(), perHosts));
+    }
+
+    /**
+     * Returns the tile if it is decoded in memory.
+     * Otherwise the tile is loaded in background, first from the disk cache then from the network, and null is
+     * returned.
+     */
     @Override
     @Nullable
-    public Image getTile(int x, int y, int zoom) throws IOException {
+    public Image getTile(int x, int y, int zoom) {
         var tile = new Tile(x, y, zoom);
 
-        var image = imageCache.getTile(tile);
+        var image = imageCache.getCachedTile(tile);
         if (image != null) {
             return image;
         }
+        if (getTileFailure(tile) != null) {
+            return null;
+        }
         boolean added;
         synchronized (retrieveQueue) {
             added = retrieveQueue.add(tile);
         }
 
         if (added) {
-            executorService.submit(() -> {
-                try {
-                    if (retrieveQueue.contains(tile)) {
-                        var tileUrl = getTileUrl(tile);
-                        imageCache.setTile(tile, getImage(tileUrl));
-                        synchronized (retrieveQueue) {
-                            retrieveQueue.remove(tile);
-                        }
+            diskLoader.submit(() -> loadTile(tile, false));
+        } else {
+            scheduler.promote(tile);
+        }
+        return null;
+    }
+
+    /**
+     * Load the tiles that are not in memory, after the visible tiles.
+     * The prefetched tiles that are still waiting and are not in the list are forgotten.
+     */
+    @Override
+    public void prefetch(List<Tile> tiles) {
+        var wanted  = new HashSet<>(tiles);
+        var dropped = scheduler.retainPrefetch(wanted);
+        synchronized (retrieveQueue) {
+            dropped.forEach(retrieveQueue::remove);
+        }
+        for (var tile : tiles) {
+            if (imageCache.getCachedTile(tile) == null && getTileFailure(tile) == null) {
+                boolean added;
+                synchronized (retrieveQueue) {
+                    added = retrieveQueue.add(tile);
+                }
+                if (added) {
+                    diskLoader.submit(() -> loadTile(tile, true));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the tile if it is decoded in memory, the lookup is not counted in the cache statistics as it is only
+     * used to replace a missing tile.
+     */
+    @Override
+    @Nullable
+    public Image getCachedTile(int x, int y, int zoom) {
+        return imageCache.getCachedTileQuietly(x, y, zoom);
+    }
+
+    @Override
+    @Nullable
+    public TileFailure getTileFailure(int x, int y, int zoom) {
+        return getTileFailure(new Tile(x, y, zoom));
+    }
+
+    /**
+     * Returns the failure of a tile, or null if it expired.
+     * An expired failure is forgotten, except a retrying one that is kept to count the attempts until the retry
+     * succeeds, fails or is dropped.
+     */
+    @Nullable
+    private TileFailure getTileFailure(Tile tile) {
+        synchronized (failures) {
+            var failure = failures.get(tile);
+            if (failure != null && System.currentTimeMillis() >= failure.getTime()) {
+                if (!failure.isRetrying()) {
+                    failures.remove(tile);
+                }
+                return null;
+            }
+            return failure;
+        }
+    }
+
+    private void loadTile(Tile tile, boolean prefetch) {
+        synchronized (retrieveQueue) {
+            if (!retrieveQueue.contains(tile)) {
+                // forgotten while waiting for the disk loader
+                return;
+            }
+        }
+        try {
+            if (imageCache.getTile(tile) != null) {
+                synchronized (retrieveQueue) {
+                    retrieveQueue.remove(tile);
+                }
+                fireTileLoaded(tile);
+                checkExpiration(tile);
+                return;
+            }
+        } catch (IOException e) {
+            log.warn("Unable to read tile {} from cache", tile, e);
+        }
+        if (prefetch) {
+            synchronized (retrieveQueue) {
+                // not if it was forgotten during the read
+                if (retrieveQueue.contains(tile)) {
+                    scheduler.submitPrefetch(tile);
+                }
+            }
+        } else if (!scheduler.submit(tile)) {
+            // it left the visible area while waiting for the disk loader
+            synchronized (retrieveQueue) {
+                retrieveQueue.remove(tile);
+            }
+        }
+    }
+
+    /**
+     * Schedule the revalidation of a tile read from the cache if it has expired.
+     * A tile without validators cannot be revalidated, it is downloaded again as a missing tile, at the same low
+     * priority.
+     */
+    private void checkExpiration(Tile tile) throws IOException {
+        var metadata = imageCache.getMetadata(tile);
+        if (metadata == null || !metadata.isExpired(System.currentTimeMillis())) {
+            return;
+        }
+        if (metadata.hasValidators()) {
+            if (revalidations.putIfAbsent(tile, metadata) == null) {
+                scheduler.submitRevalidation(tile);
+            }
+            return;
+        }
+        boolean added;
+        synchronized (retrieveQueue) {
+            added = retrieveQueue.add(tile);
+        }
+        if (added) {
+            scheduler.submitRevalidation(tile);
+        }
+    }
+
+    /**
+     * Start the downloads of the tiles given by the scheduler, until the thread is interrupted.
+     */
+    private void dispatchLoop() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                dispatch(scheduler.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Start the download of a tile taken from the scheduler.
+     * The download is marked as done when it completes, or right away if it cannot be started, so that the dispatch
+     * loop survives a bad url pattern or fetcher.
+     */
+    private void dispatch(Tile tile) {
+        var  validators = revalidations.get(tile);
+        long start      = System.nanoTime();
+        CompletableFuture<TileResponse> future;
+        try {
+            future = fetcher.fetch(getTileUrl(tile), validators);
+        } catch (RuntimeException e) {
+            log.warn("Unable to fetch tile {}", tile, e);
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((response, throwable) -> {
+            updateLimit(response, throwable, start);
+            try {
+                if (validators != null) {
+                    if (throwable == null) {
+                        tileRevalidated(tile, validators, response);
                     }
-                } catch (IOException ignored) {
-                    // do nothing
+                } else if (throwable != null) {
+                    var cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+                    tileFailed(tile, TileFailure.Type.ERROR, 0, cause.toString(), !(cause instanceof IllegalArgumentException));
+                } else {
+                    tileFetched(tile, response);
                 }
-            });
+            } finally {
+                if (validators != null) {
+                    revalidations.remove(tile);
+                }
+                scheduler.done();
+            }
+        });
+    }
+
+    /**
+     * Give the outcome of a download to the limiter, it must be called before the download is marked as done.
+     */
+    private void updateLimit(@Nullable TileResponse response, @Nullable Throwable throwable, long start) {
+        long now = System.nanoTime();
+        if (throwable instanceof IllegalArgumentException) {
+            // the request could not be built, the server was not involved
+            return;
+        }
+        if (throwable != null ||
+            response.getStatusCode() == TOO_MANY_REQUESTS ||
+            response.getStatusCode() == HttpURLConnection.HTTP_UNAVAILABLE) {
+            limiter.onOverload(now);
+        } else {
+            limiter.onResponse(now - start, scheduler.getInFlight(), now);
+        }
+        scheduler.setLimit(limiter.getLimit());
+    }
+
+    /**
+     * Returns the download statistics, including the current concurrency limit and the throughput.
+     *
+     * @return the download statistics
+     */
+    public FetchStats getFetchStats() {
+        return limiter.getStats(scheduler.getInFlight());
+    }
+
+    /**
+     * A failed revalidation is ignored, the cached tile is still displayed.
+     */
+    private void tileRevalidated(Tile tile, TileMetadata validators, TileResponse response) {
+        if (response.isSuccessful()) {
+            tileDownloaded(tile, response.getEncodedTile());
+        } else if (response.isNotModified()) {
+            try {
+                imageCache.setMetadata(tile, validators.update(response.getMetadata()));
+            } catch (IOException e) {
+                log.warn("Unable to update the metadata of tile {}", tile, e);
+            }
+        }
+    }
+
+    private void tileFetched(Tile tile, TileResponse response) {
+        int statusCode = response.getStatusCode();
+        if (response.isSuccessful()) {
+            tileDownloaded(tile, response.getEncodedTile());
+        } else if (statusCode == HttpURLConnection.HTTP_NOT_FOUND || statusCode == HttpURLConnection.HTTP_GONE) {
+            tileFailed(tile, TileFailure.Type.MISSING, statusCode, "HTTP " + statusCode, false);
+        } else {
+            boolean transientError = statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT ||
+                statusCode == TOO_MANY_REQUESTS ||
+                statusCode / 100 == 5;
+            tileFailed(tile, TileFailure.Type.ERROR, statusCode, "HTTP " + statusCode, transientError);
+        }
+    }
+
+    private void tileDownloaded(Tile tile, EncodedTile encodedTile) {
+        if (encodedTile.getLength() == 0) {
+            tileFailed(tile, TileFailure.Type.MISSING, HttpURLConnection.HTTP_OK, "Empty tile", false);
+            return;
+        }
+        try {
+            imageCache.setTile(tile, encodedTile);
+        } catch (IOException e) {
+            if (imageCache.getCachedTile(tile) == null) {
+                tileFailed(tile, TileFailure.Type.MISSING, HttpURLConnection.HTTP_OK, e.getMessage(), false);
+                return;
+            }
+            // the tile is in memory, only storing it failed
+            log.warn("Unable to store tile {}", tile, e);
+        }
+        synchronized (failures) {
+            failures.remove(tile);
+        }
+        synchronized (retrieveQueue) {
+            retrieveQueue.remove(tile);
+        }
+        fireTileLoaded(tile);
+    }
+
+    /**
+     * Record a failure, a transient error is retried after a delay doubling at each attempt.
+     */
+    private void tileFailed(Tile tile, TileFailure.Type type, int statusCode, @Nullable String message, boolean transientError) {
+        long        now = System.currentTimeMillis();
+        TileFailure failure;
+        synchronized (failures) {
+            var previous = failures.get(tile);
+            int attempts = previous == null || !previous.isRetrying() ? 1 : previous.getAttempts() + 1;
+            if (transientError && attempts <= MAX_RETRIES) {
+                long delay = Math.min(BASE_RETRY_DELAY << (attempts - 1), MAX_RETRY_DELAY);
+                // a random part so that the failed tiles are not all retried at the same time
+                delay += ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+                failure = new TileFailure(type, statusCode, message, attempts, true, now + delay);
+                var retried = failure;
+                retryTimer.schedule(() -> retry(tile, retried), delay, TimeUnit.MILLISECONDS);
+            } else {
+                long ttl = type == TileFailure.Type.MISSING ? MISSING_TTL : ERROR_TTL;
+                failure = new TileFailure(type, statusCode, message, attempts, false, now + ttl);
+            }
+            failures.put(tile, failure);
+        }
+        if (!failure.isRetrying()) {
+            synchronized (retrieveQueue) {
+                retrieveQueue.remove(tile);
+            }
+        }
+        log.debug("Tile {} failed {}", tile, failure);
+        listeners.forEach(listener -> listener.tileFailed(tile, failure));
+    }
+
+    /**
+     * Submit a tile again once its retry delay elapsed, unless it was dropped meanwhile.
+     * The failure is expired by now, so the tile is not reported as failed while it is retried.
+     */
+    private void retry(Tile tile, TileFailure failure) {
+        synchronized (failures) {
+            if (failures.get(tile) != failure) {
+                return;
+            }
+        }
+        if (!scheduler.submit(tile)) {
+            // the tile is not visible anymore, it will be requested again when needed
+            forget(List.of(tile));
         }
-        return null;
     }
 
     @Override
     public void cancelPendingZoom(int zoom) {
+        var dropped = new ArrayList<>(scheduler.cancelOtherZooms(zoom));
         synchronized (retrieveQueue) {
-            retrieveQueue.removeIf(tile -> tile.getZoom() != zoom);
+            // the tiles waiting for the disk loader or for a retry, the prefetched tiles are still downloaded
+            var prefetch = scheduler.getPrefetch();
+            retrieveQueue.removeIf(tile -> tile.getZoom() != zoom && !prefetch.contains(tile) && dropped.add(tile));
         }
+        forget(dropped);
+    }
+
+    @Override
+    public void setVisibleArea(int zoom, int minTileX, int minTileY, int maxTileX, int maxTileY) {
+        forget(scheduler.setVisibleArea(zoom, minTileX, minTileY, maxTileX, maxTileY));
     }
 
-    private static Image getImage(String urlString) throws IOException {
-        var url = new URL(urlString);
-        var conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestProperty("User-Agent", "K-Mapview");
-        conn.setRequestMethod("GET");
-        try (var inputStream = new BufferedInputStream(conn.getInputStream())) {
-            return ImageIO.read(inputStream);
+    /**
+     * Forget the tiles that are not wanted anymore, their pending retries are cancelled.
+     */
+    private void forget(List<Tile> dropped) {
+        if (dropped.isEmpty()) {
+            return;
+        }
+        synchronized (retrieveQueue) {
+            dropped.forEach(retrieveQueue::remove);
+        }
+        synchronized (failures) {
+            for (var tile : dropped) {
+                var failure = failures.get(tile);
+                if (failure != null && failure.isRetrying()) {
+                    failures.remove(tile);
+                }
+            }
         }
     }
 
+    @Override
+    public void addTileListener(TileListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeTileListener(TileListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireTileLoaded(Tile tile) {
+        listeners.forEach(listener -> listener.tileLoaded(tile));
+    }
+
     @Override
     public int getTilesSize() {
         return tilesSize;
@@ -123,10 +570,28 @@ public int getMaxZoom() {
         return maxZoom;
     }
 
+    /**
+     * Returns the url of a tile from the next url pattern whose host can start a download now.
+     * As the downloads in progress are limited to the capacity of all hosts, one is available unless a download
+     * was started outside of this server.
+     */
     private String getTileUrl(Tile tile) {
-        var nextUrlPattern = urlPatterns[urlPatternIndex++ % urlPatterns.length];
-        return nextUrlPattern.replace("${z}", Integer.toString(tile.getZoom()))
-                             .replace("${x}", Integer.toString(tile.getX()))
-                             .replace("${y}", Integer.toString(tile.getY()));
+        String first = null;
+        for (int i = 0; i < urlPatterns.length; i++) {
+            var url = getTileUrl(urlPatterns[urlPatternIndex++ % urlPatterns.length], tile);
+            if (fetcher.getAvailableConcurrency(url) > 0) {
+                return url;
+            }
+            if (first == null) {
+                first = url;
+            }
+        }
+        return first;
+    }
+
+    private static String getTileUrl(String urlPattern, Tile tile) {
+        return urlPattern.replace("${z}", Integer.toString(tile.getZoom()))
+                         .replace("${x}", Integer.toString(tile.getX()))
+                         .replace("${y}", Integer.toString(tile.getY()));
     }
 }
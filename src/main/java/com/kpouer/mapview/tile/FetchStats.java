@@ -0,0 +1,53 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A snapshot of the download statistics of a {@link DefaultTileServer}.
+ *
+ * @author Matthieu Casanova
+ */
+@AllArgsConstructor
+@Getter
+@ToString
+public class FetchStats {
+    /**
+     * The current maximum number of downloads in progress.
+     */
+    private final int    concurrencyLimit;
+    /**
+     * The highest value the limit can reach, given by the {@link TileFetcher}.
+     */
+    private final int    maxConcurrencyLimit;
+    private final int    inFlight;
+    /**
+     * The number of responses per second.
+     */
+    private final double throughput;
+    /**
+     * The smoothed latency of the responses in milliseconds.
+     */
+    private final double latency;
+    private final long   responseCount;
+    /**
+     * The number of overload signals (429, 503 or no response) that reduced the limit.
+     */
+    private final long   overloadCount;
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+import com.kpouer.mapview.tile.cache.EncodedTile;
+import com.kpouer.mapview.tile.cache.TileMetadata;
+import jakarta.annotation.Nullable;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+/**
+ * A tile fetcher using the asynchronous {@link HttpClient}.
+ * No thread is blocked while a tile is downloaded, connections are reused and HTTP/2 is used when the server
+ * supports it, so a few threads can keep many downloads in progress.
+ * The number of downloads in progress for each host is bounded, which bounds the number of HTTP/1.1 connections.
+ * The extra downloads wait in a queue of their host, {@link DefaultTileServer} avoids it by choosing the url
+ * patterns whose host is available, and keeps the tiles in its scheduler when all hosts are busy.
+ *
+ * @author Matthieu Casanova
+ */
+public class HttpClientTileFetcher implements TileFetcher {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    private final HttpClient        httpClient;
+    private final int               maxConcurrency;
+    private final int               maxPerHost;
+    /**
+     * The downloads in progress and waiting for each host, guarded by itself.
+     */
+    private final Map<String, Host> hosts;
+
+    /**
+     * Create a fetcher.
+     *
+     * @param maxConcurrency the maximum number of downloads in progress
+     * @param maxPerHost     the maximum number of downloads in progress for each host
+     */
+    public HttpClientTileFetcher(int maxConcurrency, int maxPerHost) {
+        this.maxConcurrency = maxConcurrency;
+        this.maxPerHost     = maxPerHost;
+        hosts               = new HashMap<>();
+        // the completion handlers decode the tiles, so there is a thread per processor
+        var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            var thread = new Thread(runnable, "HttpClientTileFetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpClient = HttpClient.newBuilder()
+                               .version(HttpClient.Version.HTTP_2)
+                               .followRedirects(HttpClient.Redirect.NORMAL)
+                               .connectTimeout(CONNECT_TIMEOUT)
+                               .executor(executor)
+                               .build();
+    }
+
+    @Override
+    public CompletableFuture<TileResponse> fetch(String url, @Nullable TileMetadata validators) {
+        URI         uri;
+        HttpRequest request;
+        try {
+            uri = URI.create(url);
+            var builder = HttpRequest.newBuilder(uri)
+                                     .header("User-Agent", "K-Mapview")
+                                     .timeout(REQUEST_TIMEOUT)
+                                     .GET();
+            if (validators != null) {
+                if (validators.getEtag() != null) {
+                    builder.header("If-None-Match", validators.getEtag());
+                }
+                if (validators.getLastModified() != null) {
+                    builder.header("If-Modified-Since", validators.getLastModified());
+                }
+            }
+            request = builder.build();
+        } catch (IllegalArgumentException e) {
+            // a malformed url pattern or header
+            return CompletableFuture.failedFuture(e);
+        }
+        var future   = new CompletableFuture<TileResponse>();
+        var hostName = uri.getHost();
+        acquire(hostName, () -> send(hostName, request, future));
+        return future;
+    }
+
+    /**
+     * Send a request once a slot of its host is acquired, the slot is released when the request completes.
+     */
+    private void send(@Nullable String hostName, HttpRequest request, CompletableFuture<TileResponse> future) {
+        CompletableFuture<HttpResponse<byte[]>> response;
+        try {
+            response = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (RuntimeException e) {
+            release(hostName);
+            future.completeExceptionally(e);
+            return;
+        }
+        response.whenComplete((httpResponse, throwable) -> {
+            release(hostName);
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+                return;
+            }
+            var headers    = httpResponse.headers();
+            int statusCode = httpResponse.statusCode();
+            var metadata   = TileMetadata.fromHeaders(name -> headers.firstValue(name).orElse(null),
+                                                      System.currentTimeMillis());
+            EncodedTile encodedTile = null;
+            if (statusCode / 100 == 2) {
+                var contentType = headers.firstValue("Content-Type").orElse(null);
+                encodedTile = new EncodedTile(ByteBuffer.wrap(httpResponse.body()), contentType, metadata);
+            }
+            future.complete(new TileResponse(statusCode, encodedTile, metadata));
+        });
+    }
+
+    @Override
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    public int getMaxConcurrencyPerHost() {
+        return maxPerHost;
+    }
+
+    @Override
+    public int getAvailableConcurrency(String url) {
+        String hostName;
+        try {
+            hostName = URI.create(url).getHost();
+        } catch (IllegalArgumentException e) {
+            // fetch fails right away without using a slot
+            return maxPerHost;
+        }
+        synchronized (hosts) {
+            var host = hosts.get(hostName);
+            return host == null ? maxPerHost : Math.max(maxPerHost - host.active, 0);
+        }
+    }
+
+    private void acquire(@Nullable String hostName, Runnable download) {
+        synchronized (hosts) {
+            var host = hosts.computeIfAbsent(hostName, k -> new Host());
+            if (host.active >= maxPerHost) {
+                host.waiting.add(download);
+                return;
+            }
+            host.active++;
+        }
+        download.run();
+    }
+
+    private void release(@Nullable String hostName) {
+        Runnable next;
+        synchronized (hosts) {
+            var host = hosts.get(hostName);
+            next = host.waiting.poll();
+            if (next == null) {
+                host.active--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    private static final class Host {
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private       int             active;
+    }
+}
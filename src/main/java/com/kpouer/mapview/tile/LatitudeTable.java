@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+/**
+ * A precomputed table of the world y coordinates of the latitudes, interpolated linearly between the entries.
+ * <p>
+ * It avoids the logarithm and the sine of {@link TilesTools#latitudesToWorld(double[], int, int[], int, int)} when
+ * millions of latitudes must be converted. The interpolation error grows toward the poles, with the default
+ * {@value #DEFAULT_SIZE} entries the result differs from {@link TilesTools#latitudeToWorld(double)} by at most
+ * 1 world coordinate below 75 degrees and 6 world coordinates up to 85 degrees. It is about 3 times faster than the
+ * batch conversion of {@link TilesTools}.
+ * The latitudes are clipped to the limits of the Mercator projection.
+ *
+ * @author Matthieu Casanova
+ */
+public final class LatitudeTable {
+    public static final int DEFAULT_SIZE = 1 << 16;
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private final double[] table;
+    private final double   scale;
+
+    /**
+     * Create a table of {@value #DEFAULT_SIZE} entries, it takes 512 KB.
+     */
+    public LatitudeTable() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Create a table.
+     *
+     * @param size the number of intervals of the table
+     */
+    public LatitudeTable(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid size " + size);
+        }
+        table = new double[size + 2];
+        scale = size / (2 * MAX_LATITUDE);
+        for (int i = 0; i <= size; i++) {
+            double latitude = Math.toRadians(i / scale - MAX_LATITUDE);
+            table[i] = (1 - StrictMath.log(StrictMath.tan(Math.PI / 4 + latitude / 2)) / Math.PI) / 2 * (1 << TilesTools.WORLD_BITS);
+        }
+        // so the interpolation of the last entry does not need a bound check
+        table[size + 1] = table[size];
+    }
+
+    /**
+     * Returns the world y coordinate of a latitude.
+     *
+     * @param latitude the latitude
+     * @return the world coordinate
+     */
+    public int latitudeToWorld(double latitude) {
+        double position = (Math.min(Math.max(latitude, -MAX_LATITUDE), MAX_LATITUDE) + MAX_LATITUDE) * scale;
+        int    index    = (int) position;
+        double low      = table[index];
+        return (int) Math.floor(low + (table[index + 1] - low) * (position - index));
+    }
+
+    /**
+     * Convert latitudes to world y coordinates.
+     *
+     * @param latitudes   the latitudes
+     * @param offset      the index of the first latitude
+     * @param worldY      the array receiving the world coordinates
+     * @param worldOffset the index of the first world coordinate
+     * @param length      the number of coordinates to convert
+     */
+    public void latitudesToWorld(double[] latitudes, int offset, int[] worldY, int worldOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            worldY[worldOffset + i] = latitudeToWorld(latitudes[offset + i]);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+import jakarta.annotation.Nullable;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Why a tile could not be loaded.
+ * A failure is either waiting for a retry, or remembered until it expires so the tile is not requested again.
+ *
+ * @author Matthieu Casanova
+ */
+@Getter
+@ToString
+public class TileFailure {
+    public enum Type {
+        /**
+         * The server has no such tile (404, 410) or returned an empty or undecodable tile.
+         */
+        MISSING,
+        /**
+         * The download failed.
+         */
+        ERROR
+    }
+
+    private final Type    type;
+    /**
+     * The HTTP status code, 0 if no response was received.
+     */
+    private final int     statusCode;
+    @Nullable
+    private final String  message;
+    /**
+     * The number of failed attempts.
+     */
+    private final int     attempts;
+    /**
+     * True if the tile will be requested again at {@link #getTime()}.
+     */
+    private final boolean retrying;
+    /**
+     * The time of the next attempt if retrying, otherwise the time until which the tile is not requested again.
+     */
+    private final long    time;
+
+    public TileFailure(Type type, int statusCode, @Nullable String message, int attempts, boolean retrying, long time) {
+        this.type       = type;
+        this.statusCode = statusCode;
+        this.message    = message;
+        this.attempts   = attempts;
+        this.retrying   = retrying;
+        this.time       = time;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+import com.kpouer.mapview.tile.cache.TileMetadata;
+import jakarta.annotation.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Download the tiles for a {@link DefaultTileServer}.
+ *
+ * @author Matthieu Casanova
+ */
+public interface TileFetcher {
+    /**
+     * Start downloading a tile.
+     * If validators are given the request is conditional (If-None-Match / If-Modified-Since) and the response may be
+     * {@link TileResponse#NOT_MODIFIED}.
+     * The future is completed with the response whatever its status code, and exceptionally with an
+     * {@link java.io.IOException} if no response could be received.
+     * The completion handlers might be run in the thread doing the download.
+     *
+     * @param url        the url of the tile
+     * @param validators the metadata of the cached tile to revalidate, or null
+     * @return a future completed with the response
+     */
+    CompletableFuture<TileResponse> fetch(String url, @Nullable TileMetadata validators);
+
+    /**
+     * Returns how many downloads can usefully be in progress at the same time.
+     *
+     * @return the maximum number of downloads in progress
+     */
+    int getMaxConcurrency();
+
+    /**
+     * Returns how many downloads can usefully be in progress at the same time for a single host.
+     * The default implementation has no limit per host.
+     *
+     * @return the maximum number of downloads in progress for a host
+     */
+    default int getMaxConcurrencyPerHost() {
+        return getMaxConcurrency();
+    }
+
+    /**
+     * Returns how many more downloads from the host of an url can start now without waiting for another download
+     * of the same host to finish.
+     * The default implementation has no limit per host.
+     *
+     * @param url the url of a tile
+     * @return the number of downloads that can start for the host
+     */
+    default int getAvailableConcurrency(String url) {
+        return Integer.MAX_VALUE;
+    }
+}
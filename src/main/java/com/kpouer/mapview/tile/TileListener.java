@@ -0,0 +1,42 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+/**
+ * A listener notified when a tile becomes available in a {@link TileServer}, or cannot be loaded.
+ *
+ * @author Matthieu Casanova
+ */
+@FunctionalInterface
+public interface TileListener {
+    /**
+     * Called when a tile was loaded and can be painted.
+     * It is not called in the EDT.
+     *
+     * @param tile the tile
+     */
+    void tileLoaded(Tile tile);
+
+    /**
+     * Called when a tile could not be loaded, possibly before a retry.
+     * It is not called in the EDT.
+     *
+     * @param tile    the tile
+     * @param failure the failure
+     */
+    default void tileFailed(Tile tile, TileFailure failure) {
+    }
+}
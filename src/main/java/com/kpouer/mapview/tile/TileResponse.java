@@ -0,0 +1,56 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+import com.kpouer.mapview.tile.cache.EncodedTile;
+import com.kpouer.mapview.tile.cache.TileMetadata;
+import jakarta.annotation.Nullable;
+import lombok.Getter;
+
+/**
+ * The response of a {@link TileFetcher}.
+ *
+ * @author Matthieu Casanova
+ */
+@Getter
+public class TileResponse {
+    public static final int NOT_MODIFIED = 304;
+
+    private final int          statusCode;
+    /**
+     * The downloaded tile, only for a successful response.
+     */
+    @Nullable
+    private final EncodedTile  encodedTile;
+    /**
+     * The metadata given by the response headers.
+     */
+    private final TileMetadata metadata;
+
+    public TileResponse(int statusCode, @Nullable EncodedTile encodedTile, TileMetadata metadata) {
+        this.statusCode  = statusCode;
+        this.encodedTile = encodedTile;
+        this.metadata    = metadata;
+    }
+
+    public boolean isSuccessful() {
+        return statusCode / 100 == 2 && encodedTile != null;
+    }
+
+    public boolean isNotModified() {
+        return statusCode == NOT_MODIFIED;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Orders the tiles waiting to be downloaded.
+ * The tiles closest to the center of the visible area are downloaded first, and the tiles that left the visible
+ * area or the current zoom level are dropped before being downloaded.
+ * Prefetched tiles are downloaded only when no visible tile is waiting, and expired tiles are revalidated only when
+ * no other tile is waiting.
+ * It also limits the number of downloads in progress, the limit can be changed at any time.
+ *
+ * @author Matthieu Casanova
+ */
+final class TileScheduler {
+    /**
+     * The number of tiles around the visible area that are kept when the visible area changes.
+     */
+    private static final int MARGIN = 1;
+
+    private final List<Tile> pending;
+    /**
+     * The prefetched tiles, the most useful first.
+     */
+    private final List<Tile> prefetch;
+    /**
+     * The expired tiles to revalidate or download again, they are already displayed so they are never dropped.
+     */
+    private final List<Tile> revalidate;
+    private       int        limit;
+    private       int        inFlight;
+    private       boolean    hasVisibleArea;
+    private       int        zoom;
+    private       int        minX;
+    private       int        minY;
+    private       int        maxX;
+    private       int        maxY;
+
+    /**
+     * Create a scheduler.
+     *
+     * @param limit the initial maximum number of downloads in progress
+     */
+    TileScheduler(int limit) {
+        this.limit = limit;
+        pending    = new ArrayList<>();
+        prefetch   = new ArrayList<>();
+        revalidate = new ArrayList<>();
+    }
+
+    /**
+     * Queue a visible tile.
+     *
+     * @param tile the tile
+     * @return false if the tile left the visible area meanwhile, it is then not queued
+     */
+    synchronized boolean submit(Tile tile) {
+        if (hasVisibleArea && !isVisible(tile)) {
+            return false;
+        }
+        pending.add(tile);
+        notifyAll();
+        return true;
+    }
+
+    synchronized void submitPrefetch(Tile tile) {
+        prefetch.add(tile);
+        notifyAll();
+    }
+
+    synchronized void submitRevalidation(Tile tile) {
+        revalidate.add(tile);
+        notifyAll();
+    }
+
+    /**
+     * Move a prefetched tile to the visible tiles if it is waiting.
+     *
+     * @param tile the tile that is now visible
+     */
+    synchronized void promote(Tile tile) {
+        if (prefetch.remove(tile)) {
+            pending.add(tile);
+        }
+    }
+
+    /**
+     * Returns the prefetched tiles that are waiting.
+     *
+     * @return a copy of the prefetched tiles
+     */
+    synchronized Set<Tile> getPrefetch() {
+        return new HashSet<>(prefetch);
+    }
+
+    /**
+     * Drop the prefetched tiles that are not wanted anymore.
+     *
+     * @param wanted the tiles that are still worth prefetching
+     * @return the dropped tiles
+     */
+    synchronized List<Tile> retainPrefetch(Collection<Tile> wanted) {
+        var dropped = new ArrayList<Tile>();
+        prefetch.removeIf(tile -> {
+            if (wanted.contains(tile)) {
+                return false;
+            }
+            dropped.add(tile);
+            return true;
+        });
+        return dropped;
+    }
+
+    /**
+     * Set the visible area and drop the pending tiles that are out of it.
+     *
+     * @return the dropped tiles
+     */
+    synchronized List<Tile> setVisibleArea(int zoom, int minX, int minY, int maxX, int maxY) {
+        hasVisibleArea = true;
+        this.zoom      = zoom;
+        this.minX      = minX;
+        this.minY      = minY;
+        this.maxX      = maxX;
+        this.maxY      = maxY;
+        var dropped = new ArrayList<Tile>();
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            var tile = pending.get(i);
+            if (!isVisible(tile)) {
+                dropped.add(tile);
+                removeAt(i);
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Drop the pending tiles of other zoom levels.
+     *
+     * @return the dropped tiles
+     */
+    synchronized List<Tile> cancelOtherZooms(int zoom) {
+        var dropped = new ArrayList<Tile>();
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            var tile = pending.get(i);
+            if (tile.getZoom() != zoom) {
+                dropped.add(tile);
+                removeAt(i);
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Wait until a download can start and returns the tile with the highest priority.
+     * {@link #done()} must be called when the download is finished.
+     *
+     * @return the tile to download
+     * @throws InterruptedException if the thread is interrupted
+     */
+    synchronized Tile take() throws InterruptedException {
+        while ((pending.isEmpty() && prefetch.isEmpty() && revalidate.isEmpty()) || inFlight >= limit) {
+            wait();
+        }
+        inFlight++;
+        if (pending.isEmpty()) {
+            return prefetch.isEmpty() ? revalidate.remove(0) : prefetch.remove(0);
+        }
+        int  best         = 0;
+        long bestPriority = Long.MAX_VALUE;
+        for (int i = 0; i < pending.size(); i++) {
+            long priority = getPriority(pending.get(i));
+            if (priority < bestPriority) {
+                best         = i;
+                bestPriority = priority;
+            }
+        }
+        return removeAt(best);
+    }
+
+    /**
+     * Change the maximum number of downloads in progress.
+     * The downloads in progress above a lowered limit are not interrupted.
+     *
+     * @param limit the new limit
+     */
+    synchronized void setLimit(int limit) {
+        if (limit != this.limit) {
+            this.limit = limit;
+            notifyAll();
+        }
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized void done() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Returns the priority of a tile, the lowest value is downloaded first.
+     */
+    private long getPriority(Tile tile) {
+        if (!hasVisibleArea) {
+            return 0;
+        }
+        long zoomDistance = Math.abs(tile.getZoom() - zoom);
+        // the distances are doubled to keep the center of the area an integer
+        long dx = 2L * tile.getX() - minX - maxX;
+        long dy = 2L * tile.getY() - minY - maxY;
+        return (zoomDistance << 48) + dx * dx + dy * dy;
+    }
+
+    private boolean isVisible(Tile tile) {
+        return tile.getZoom() == zoom &&
+            tile.getX() >= minX - MARGIN &&
+            tile.getX() <= maxX + MARGIN &&
+            tile.getY() >= minY - MARGIN &&
+            tile.getY() <= maxY + MARGIN;
+    }
+
+    private Tile removeAt(int index) {
+        var tile = pending.get(index);
+        int last = pending.size() - 1;
+        pending.set(index, pending.get(last));
+        pending.remove(last);
+        return tile;
+    }
+}
@@ -15,8 +15,11 @@
  */
 package com.kpouer.mapview.tile;
 
+import jakarta.annotation.Nullable;
+
 import java.awt.*;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * @author Matthieu Casanova
@@ -24,8 +27,81 @@
 public interface TileServer {
     Image getTile(int x, int y, int zoom) throws IOException;
 
+    /**
+     * Returns the tile if it is already available in memory, without triggering any loading.
+     * It is used to draw a replacement for missing tiles and must not allocate.
+     * The default implementation returns null, so no replacement is drawn.
+     *
+     * @param x    the x coordinate of the tile
+     * @param y    the y coordinate of the tile
+     * @param zoom the zoom level
+     * @return the image or null if it is not available
+     */
+    @Nullable
+    default Image getCachedTile(int x, int y, int zoom) {
+        return null;
+    }
+
     void cancelPendingZoom(int zoom);
 
+    /**
+     * Called when the visible area changes so the tile server can load the visible tiles first and forget the
+     * requested tiles that are no longer visible.
+     * The default implementation cancels the other zoom levels.
+     *
+     * @param zoom     the zoom level
+     * @param minTileX the x coordinate of the leftmost visible tile
+     * @param minTileY the y coordinate of the topmost visible tile
+     * @param maxTileX the x coordinate of the rightmost visible tile
+     * @param maxTileY the y coordinate of the bottommost visible tile
+     */
+    default void setVisibleArea(int zoom, int minTileX, int minTileY, int maxTileX, int maxTileY) {
+        cancelPendingZoom(zoom);
+    }
+
+    /**
+     * Ask the tile server to load tiles that will probably be visible soon.
+     * They are loaded after the visible tiles, and the tiles of a previous call that are not in the new list may be
+     * dropped.
+     * The default implementation does nothing.
+     *
+     * @param tiles the tiles to prefetch, the most useful first
+     */
+    default void prefetch(List<Tile> tiles) {
+    }
+
+    /**
+     * Returns why a tile could not be loaded.
+     * The default implementation does not track the failures.
+     *
+     * @param x    the x coordinate of the tile
+     * @param y    the y coordinate of the tile
+     * @param zoom the zoom level
+     * @return the failure, or null if the tile did not fail or its failure expired
+     */
+    @Nullable
+    default TileFailure getTileFailure(int x, int y, int zoom) {
+        return null;
+    }
+
+    /**
+     * Add a listener that will be notified when a tile that was not available is loaded.
+     * The default implementation does nothing, the view then only sees the tiles available when it paints.
+     *
+     * @param listener the listener
+     */
+    default void addTileListener(TileListener listener) {
+    }
+
+    /**
+     * Remove a listener.
+     * The default implementation does nothing.
+     *
+     * @param listener the listener
+     */
+    default void removeTileListener(TileListener listener) {
+    }
+
     int getTilesSize();
 
     int getMinZoom();
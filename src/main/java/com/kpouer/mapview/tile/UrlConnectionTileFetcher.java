@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+import com.kpouer.mapview.tile.cache.EncodedTile;
+import com.kpouer.mapview.tile.cache.TileMetadata;
+import jakarta.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A tile fetcher using {@link HttpURLConnection}, each download blocks a thread of a fixed pool.
+ *
+ * @author Matthieu Casanova
+ */
+public class UrlConnectionTileFetcher implements TileFetcher {
+    private final int             threadCount;
+    private final ExecutorService executorService;
+
+    /**
+     * Create a fetcher.
+     *
+     * @param threadCount the number of threads, it is the maximum number of downloads in progress
+     */
+    public UrlConnectionTileFetcher(int threadCount) {
+        this.threadCount = threadCount;
+        executorService  = Executors.newFixedThreadPool(threadCount);
+    }
+
+    @Override
+    public CompletableFuture<TileResponse> fetch(String url, @Nullable TileMetadata validators) {
+        var future = new CompletableFuture<TileResponse>();
+        executorService.execute(() -> {
+            try {
+                future.complete(download(url, validators));
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    public int getMaxConcurrency() {
+        return threadCount;
+    }
+
+    private static TileResponse download(String urlString, @Nullable TileMetadata validators) throws IOException {
+        var url = new URL(urlString);
+        var conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty("User-Agent", "K-Mapview");
+        conn.setRequestMethod("GET");
+        if (validators != null) {
+            if (validators.getEtag() != null) {
+                conn.setRequestProperty("If-None-Match", validators.getEtag());
+            }
+            if (validators.getLastModified() != null) {
+                conn.setRequestProperty("If-Modified-Since", validators.getLastModified());
+            }
+        }
+        int statusCode = conn.getResponseCode();
+        var metadata   = TileMetadata.fromHeaders(conn::getHeaderField, System.currentTimeMillis());
+        if (statusCode / 100 != 2) {
+            // consume the error body so that the connection can be reused
+            try (var errorStream = conn.getErrorStream()) {
+                if (errorStream != null) {
+                    errorStream.readAllBytes();
+                }
+            }
+            return new TileResponse(statusCode, null, metadata);
+        }
+        try (var inputStream = conn.getInputStream()) {
+            var data = ByteBuffer.wrap(inputStream.readAllBytes());
+            return new TileResponse(statusCode, new EncodedTile(data, conn.getContentType(), metadata), metadata);
+        }
+    }
+}
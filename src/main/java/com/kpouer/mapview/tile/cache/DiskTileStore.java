@@ -0,0 +1,515 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import jakarta.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A tile store keeping one file per tile in a directory, named zoom_x_y.extension.
+ * The store can be bounded by a quota in bytes, the least recently accessed tiles are then deleted, and by a max
+ * age after which tiles are considered missing and deleted.
+ * The HTTP metadata of a tile, if any, is stored next to it in a zoom_x_y.meta properties file.
+ * The files are written in a temporary file then moved in place, so a concurrent read never sees a partial tile.
+ * The sizes and access times are kept in memory, the index is rebuilt from the directory content at startup.
+ * The startup scan and the evictions are done in a background thread, stopped by {@link #close()}.
+ *
+ * @author Matthieu Casanova
+ */
+@Slf4j
+public class DiskTileStore implements TileStore {
+    private static final String[] EXTENSIONS = {"png", "jpg", "webp"};
+    private static final String   METADATA_EXTENSION = "meta";
+    private static final String   TEMP_EXTENSION     = ".tmp";
+    /**
+     * When the quota is exceeded the tiles are evicted until the size is below this ratio of the quota.
+     */
+    private static final double   EVICTION_TARGET_RATIO = 0.9;
+    private static final long     MIN_SWEEP_PERIOD      = TimeUnit.MINUTES.toMillis(1);
+    private static final long     MAX_SWEEP_PERIOD      = TimeUnit.HOURS.toMillis(1);
+    /**
+     * The temporary files are deleted at startup only if they are older than this, so the writes in progress, of
+     * this store or of another process sharing the directory, are not broken.
+     */
+    private static final long     TEMP_FILE_MAX_AGE     = TimeUnit.MINUTES.toMillis(1);
+
+    private final Path                     directory;
+    private final long                     quota;
+    private final long                     maxAge;
+    private final Map<Tile, Entry>         index;
+    private final AtomicLong               totalSize;
+    private final AtomicBoolean            evictionScheduled;
+    private final ScheduledExecutorService executor;
+    private final long                     startTime;
+    private volatile boolean               indexReady;
+    private volatile boolean               closed;
+
+    /**
+     * Create an unbounded disk tile store.
+     *
+     * @param directory the directory where the tiles are stored
+     * @throws IOException if the directory cannot be created
+     */
+    public DiskTileStore(Path directory) throws IOException {
+        this(directory, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Create a disk tile store.
+     *
+     * @param directory the directory where the tiles are stored
+     * @param quota     the maximum size of the tiles in bytes
+     * @param maxAge    the maximum age of the tiles, null if they never expire
+     * @throws IOException if the directory cannot be created
+     */
+    public DiskTileStore(Path directory, long quota, @Nullable Duration maxAge) throws IOException {
+        Files.createDirectories(directory);
+        this.directory    = directory;
+        this.quota        = quota;
+        this.maxAge       = maxAge == null ? Long.MAX_VALUE : maxAge.toMillis();
+        index             = new ConcurrentHashMap<>();
+        totalSize         = new AtomicLong();
+        evictionScheduled = new AtomicBoolean();
+        startTime         = System.currentTimeMillis();
+        executor          = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "DiskTileStore-" + directory.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::buildIndex);
+        if (maxAge != null) {
+            long period = Math.min(Math.max(this.maxAge / 4, MIN_SWEEP_PERIOD), MAX_SWEEP_PERIOD);
+            executor.scheduleWithFixedDelay(this::removeExpiredTiles, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Nullable
+    @Override
+    public EncodedTile read(Tile tile) throws IOException {
+        ensureOpen();
+        var indexEntry = index.get(tile);
+        if (indexEntry == null && !indexReady) {
+            indexEntry = findOnDisk(tile);
+        }
+        if (indexEntry == null) {
+            return null;
+        }
+        var  entry = indexEntry;
+        long now = System.currentTimeMillis();
+        if (isExpired(entry, now)) {
+            runInBackground(() -> removeEntry(tile, entry));
+            return null;
+        }
+        byte[] data;
+        try {
+            data = Files.readAllBytes(getPath(tile, entry.extension));
+        } catch (NoSuchFileException e) {
+            // deleted concurrently
+            if (index.remove(tile, entry)) {
+                totalSize.addAndGet(-entry.size);
+            }
+            return null;
+        }
+        entry.lastAccess = now;
+        return new EncodedTile(ByteBuffer.wrap(data), getContentType(entry.extension), readMetadata(tile, entry));
+    }
+
+    @Nullable
+    @Override
+    public TileMetadata readMetadata(Tile tile) throws IOException {
+        ensureOpen();
+        var entry = index.get(tile);
+        if (entry == null && !indexReady) {
+            entry = findOnDisk(tile);
+        }
+        return entry == null ? null : readMetadata(tile, entry);
+    }
+
+    /**
+     * Rewrite only the metadata file, the tile is considered as written now for the max age.
+     */
+    @Override
+    public void updateMetadata(Tile tile, TileMetadata metadata) throws IOException {
+        ensureOpen();
+        var entry = index.get(tile);
+        if (entry == null) {
+            return;
+        }
+        writeMetadata(tile, metadata);
+        long now = System.currentTimeMillis();
+        Files.setLastModifiedTime(getPath(tile, entry.extension), FileTime.fromMillis(now));
+        var updated = new Entry(entry.extension, entry.size, now);
+        updated.hasMetadata = true;
+        index.replace(tile, entry, updated);
+    }
+
+    @Override
+    public void write(Tile tile, EncodedTile encodedTile) throws IOException {
+        ensureOpen();
+        var extension = encodedTile.getFileExtension();
+        var data      = encodedTile.getData();
+        int length    = data.remaining();
+        writeFile(tile, getPath(tile, extension), data);
+        var metadata = encodedTile.getMetadata();
+        if (metadata != null) {
+            writeMetadata(tile, metadata);
+        }
+        long now   = System.currentTimeMillis();
+        var  entry = new Entry(extension, length, now);
+        entry.hasMetadata = metadata != null;
+        var  previous = index.put(tile, entry);
+        long delta    = length;
+        if (previous != null) {
+            delta -= previous.size;
+            if (!previous.extension.equals(extension)) {
+                Files.deleteIfExists(getPath(tile, previous.extension));
+            }
+            if (previous.hasMetadata && metadata == null) {
+                Files.deleteIfExists(getPath(tile, METADATA_EXTENSION));
+            }
+        }
+        if (totalSize.addAndGet(delta) > quota && evictionScheduled.compareAndSet(false, true)) {
+            runInBackground(this::evict);
+        }
+    }
+
+    @Override
+    public void remove(Tile tile) throws IOException {
+        ensureOpen();
+        var entry = index.remove(tile);
+        if (entry != null) {
+            totalSize.addAndGet(-entry.size);
+            Files.deleteIfExists(getPath(tile, entry.extension));
+            if (entry.hasMetadata) {
+                Files.deleteIfExists(getPath(tile, METADATA_EXTENSION));
+            }
+        }
+    }
+
+    /**
+     * Stop the background thread, after the scan or the eviction in progress.
+     *
+     * @throws IOException if interrupted while waiting for the background thread
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping the background thread of " + directory);
+        }
+    }
+
+    /**
+     * Returns the size of the stored tiles.
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return totalSize.get();
+    }
+
+    private void runInBackground(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed meanwhile
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The store " + directory + " is closed");
+        }
+    }
+
+    @Nullable
+    private Entry findOnDisk(Tile tile) throws IOException {
+        for (var extension : EXTENSIONS) {
+            var path = getPath(tile, extension);
+            if (Files.exists(path)) {
+                var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                var entry      = new Entry(extension, attributes.size(), attributes.lastModifiedTime().toMillis());
+                entry.hasMetadata = Files.exists(getPath(tile, METADATA_EXTENSION));
+                if (index.putIfAbsent(tile, entry) == null) {
+                    totalSize.addAndGet(entry.size);
+                    return entry;
+                }
+                return index.get(tile);
+            }
+        }
+        return null;
+    }
+
+    private void buildIndex() {
+        var withMetadata = new HashSet<Tile>();
+        try (var paths = Files.newDirectoryStream(directory)) {
+            for (var path : paths) {
+                try {
+                    indexFile(path, withMetadata);
+                } catch (NoSuchFileException e) {
+                    // moved or deleted by a concurrent write
+                }
+            }
+        } catch (IOException e) {
+            log.error("Unable to index the tiles of {}", directory, e);
+        }
+        for (var tile : withMetadata) {
+            var entry = index.get(tile);
+            if (entry != null) {
+                entry.hasMetadata = true;
+            }
+        }
+        indexReady = true;
+        log.info("Indexed {} tiles ({} bytes) in {}", index.size(), totalSize.get(), directory);
+        if (totalSize.get() > quota && evictionScheduled.compareAndSet(false, true)) {
+            evict();
+        }
+    }
+
+    private void indexFile(Path path, Set<Tile> withMetadata) throws IOException {
+        var fileName = path.getFileName().toString();
+        if (fileName.endsWith(TEMP_EXTENSION)) {
+            if (Files.getLastModifiedTime(path).toMillis() < startTime - TEMP_FILE_MAX_AGE) {
+                // left by an interrupted write
+                Files.deleteIfExists(path);
+            }
+            return;
+        }
+        int dot      = fileName.lastIndexOf('.');
+        if (dot == -1) {
+            return;
+        }
+        var     extension = fileName.substring(dot + 1);
+        boolean metadata  = METADATA_EXTENSION.equals(extension);
+        if (!metadata && !isKnownExtension(extension)) {
+            return;
+        }
+        var coordinates = fileName.substring(0, dot).split("_");
+        if (coordinates.length != 3) {
+            return;
+        }
+        Tile tile;
+        try {
+            tile = new Tile(Integer.parseInt(coordinates[1]), Integer.parseInt(coordinates[2]), Integer.parseInt(coordinates[0]));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (metadata) {
+            withMetadata.add(tile);
+            return;
+        }
+        var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        var entry      = new Entry(fileName.substring(dot + 1), attributes.size(), attributes.lastModifiedTime().toMillis());
+        entry.lastAccess = Math.max(entry.lastAccess, attributes.lastAccessTime().toMillis());
+        if (index.putIfAbsent(tile, entry) == null) {
+            totalSize.addAndGet(entry.size);
+        }
+    }
+
+    /**
+     * Delete the least recently accessed tiles until the size is below the target.
+     */
+    private void evict() {
+        evictionScheduled.set(false);
+        long target = (long) (quota * EVICTION_TARGET_RATIO);
+        if (totalSize.get() <= quota) {
+            return;
+        }
+        // the access times are copied as they keep changing while sorting
+        var candidates = new ArrayList<Candidate>(index.size());
+        index.forEach((tile, entry) -> candidates.add(new Candidate(tile, entry)));
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+        int evicted = 0;
+        for (var candidate : candidates) {
+            if (totalSize.get() <= target) {
+                break;
+            }
+            removeEntry(candidate.tile, candidate.entry);
+            evicted++;
+        }
+        log.debug("Evicted {} tiles from {}", evicted, directory);
+    }
+
+    private void removeExpiredTiles() {
+        long now = System.currentTimeMillis();
+        index.forEach((tile, entry) -> {
+            if (isExpired(entry, now)) {
+                removeEntry(tile, entry);
+            }
+        });
+    }
+
+    private void removeEntry(Tile tile, Entry entry) {
+        if (index.remove(tile, entry)) {
+            totalSize.addAndGet(-entry.size);
+            try {
+                Files.deleteIfExists(getPath(tile, entry.extension));
+                if (entry.hasMetadata) {
+                    Files.deleteIfExists(getPath(tile, METADATA_EXTENSION));
+                }
+            } catch (IOException e) {
+                log.warn("Unable to delete tile {}", tile, e);
+            }
+        }
+    }
+
+    @Nullable
+    private TileMetadata readMetadata(Tile tile, Entry entry) throws IOException {
+        if (!entry.hasMetadata) {
+            return null;
+        }
+        var properties = new Properties();
+        try (var reader = Files.newBufferedReader(getPath(tile, METADATA_EXTENSION), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        long expires;
+        try {
+            expires = Long.parseLong(properties.getProperty("expires", "0"));
+        } catch (NumberFormatException e) {
+            expires = 0;
+        }
+        return new TileMetadata(properties.getProperty("etag"), properties.getProperty("lastModified"), expires);
+    }
+
+    private void writeMetadata(Tile tile, TileMetadata metadata) throws IOException {
+        var properties = new Properties();
+        if (metadata.getEtag() != null) {
+            properties.setProperty("etag", metadata.getEtag());
+        }
+        if (metadata.getLastModified() != null) {
+            properties.setProperty("lastModified", metadata.getLastModified());
+        }
+        properties.setProperty("expires", Long.toString(metadata.getExpires()));
+        var writer = new StringWriter();
+        properties.store(writer, null);
+        var data = ByteBuffer.wrap(writer.toString().getBytes(StandardCharsets.UTF_8));
+        writeFile(tile, getPath(tile, METADATA_EXTENSION), data);
+    }
+
+    /**
+     * Write a file in a temporary file of the same directory, then move it in place.
+     */
+    private void writeFile(Tile tile, Path path, ByteBuffer data) throws IOException {
+        var tempFile = Files.createTempFile(directory, tile.getKey() + '-', TEMP_EXTENSION);
+        try {
+            try (var channel = FileChannel.open(tempFile, WRITE)) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            try {
+                Files.move(tempFile, path, ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, path, REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static boolean isKnownExtension(String extension) {
+        for (var knownExtension : EXTENSIONS) {
+            if (knownExtension.equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.writtenAt > maxAge;
+    }
+
+    private Path getPath(Tile tile, String extension) {
+        return directory.resolve(tile.getKey() + '.' + extension);
+    }
+
+    private static String getContentType(String extension) {
+        switch (extension) {
+            case "jpg":
+                return "image/jpeg";
+            case "webp":
+                return "image/webp";
+            default:
+                return "image/png";
+        }
+    }
+
+    private static final class Entry {
+        private final    String  extension;
+        private final    long    size;
+        private final    long    writtenAt;
+        private volatile long    lastAccess;
+        private volatile boolean hasMetadata;
+
+        private Entry(String extension, long size, long writtenAt) {
+            this.extension = extension;
+            this.size      = size;
+            this.writtenAt = writtenAt;
+            lastAccess     = writtenAt;
+        }
+    }
+
+    private static final class Candidate {
+        private final Tile  tile;
+        private final Entry entry;
+        private final long  lastAccess;
+
+        private Candidate(Tile tile, Entry entry) {
+            this.tile  = tile;
+            this.entry = entry;
+            lastAccess = entry.lastAccess;
+        }
+    }
+}
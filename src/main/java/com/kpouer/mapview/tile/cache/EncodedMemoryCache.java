@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import jakarta.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A memory tier keeping the tiles in their encoded form, between the decoded images and the disk.
+ * An encoded tile is usually 10 to 20 times smaller than its pixels, so many more tiles can be kept in memory and a
+ * tile evicted from the {@link MemoryCache} only needs to be decoded again instead of being read from the disk.
+ * <p>
+ * The tiles read from memory mapped files are copied on the heap so they stay valid when the file is compacted.
+ *
+ * @author Matthieu Casanova
+ */
+public class EncodedMemoryCache implements TileStore {
+    /**
+     * The approximate memory used by an entry besides its data.
+     */
+    private static final int ENTRY_OVERHEAD        = 128;
+    private static final int MAX_CONCURRENCY_LEVEL = 16;
+    /**
+     * The weight of a typical encoded tile, to spread the capacity in segments holding enough tiles.
+     */
+    private static final int TYPICAL_TILE_WEIGHT   = 16 * 1024;
+    private static final int MIN_TILES_PER_SEGMENT = 16;
+
+    private final TileLruMap<EncodedTile> map;
+
+    /**
+     * Create an encoded memory cache.
+     *
+     * @param capacity the capacity in bytes of the encoded data
+     */
+    public EncodedMemoryCache(long capacity) {
+        int concurrencyLevel = (int) Math.min(MAX_CONCURRENCY_LEVEL, capacity / (MIN_TILES_PER_SEGMENT * TYPICAL_TILE_WEIGHT));
+        map = new TileLruMap<>(capacity, concurrencyLevel, encodedTile -> encodedTile.getLength() + ENTRY_OVERHEAD);
+    }
+
+    @Nullable
+    @Override
+    public EncodedTile read(Tile tile) {
+        return map.get(tile.getX(), tile.getY(), tile.getZoom());
+    }
+
+    @Override
+    public void write(Tile tile, EncodedTile encodedTile) {
+        var data = encodedTile.getData();
+        if (data.isDirect()) {
+            encodedTile = new EncodedTile(ByteBuffer.wrap(encodedTile.toByteArray()),
+                                          encodedTile.getContentType(),
+                                          encodedTile.getMetadata());
+        }
+        map.put(tile.getX(), tile.getY(), tile.getZoom(), encodedTile);
+    }
+
+    /**
+     * Replace the metadata of the tile if it is in memory.
+     */
+    @Override
+    public void updateMetadata(Tile tile, TileMetadata metadata) {
+        // replaced under the segment lock so a tile written meanwhile is not overwritten
+        map.getAndApply(tile.getX(), tile.getY(), tile.getZoom(), encodedTile -> {
+            map.put(tile.getX(), tile.getY(), tile.getZoom(), encodedTile.withMetadata(metadata));
+            return encodedTile;
+        });
+    }
+
+    @Override
+    public void remove(Tile tile) {
+        map.remove(tile.getX(), tile.getY(), tile.getZoom());
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public CacheStats getStats() {
+        return map.getStats();
+    }
+}
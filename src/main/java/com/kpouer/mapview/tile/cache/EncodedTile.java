@@ -0,0 +1,173 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import jakarta.annotation.Nullable;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A tile in its original encoded form, as it was downloaded.
+ * The data may be in a memory mapped file, so it is exposed as a read only buffer.
+ *
+ * @author Matthieu Casanova
+ */
+public class EncodedTile {
+    private final ByteBuffer   data;
+    /**
+     * The mime type of the data, if known.
+     */
+    @Nullable
+    private final String       contentType;
+    @Nullable
+    private final TileMetadata metadata;
+
+    public EncodedTile(byte[] data, @Nullable String contentType) {
+        this(ByteBuffer.wrap(data), contentType, null);
+    }
+
+    public EncodedTile(ByteBuffer data, @Nullable String contentType) {
+        this(data, contentType, null);
+    }
+
+    public EncodedTile(ByteBuffer data, @Nullable String contentType, @Nullable TileMetadata metadata) {
+        this.data        = data.asReadOnlyBuffer();
+        this.contentType = contentType;
+        this.metadata    = metadata;
+    }
+
+    /**
+     * Returns the encoded data.
+     *
+     * @return a new read only buffer on the data
+     */
+    public ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    public int getLength() {
+        return data.remaining();
+    }
+
+    @Nullable
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns the HTTP validators and expiration of the tile.
+     *
+     * @return the metadata or null if they are unknown
+     */
+    @Nullable
+    public TileMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns the same tile with other metadata.
+     *
+     * @param metadata the new metadata
+     * @return a new encoded tile sharing the data
+     */
+    public EncodedTile withMetadata(@Nullable TileMetadata metadata) {
+        return new EncodedTile(data, contentType, metadata);
+    }
+
+    /**
+     * Returns a copy of the data.
+     *
+     * @return the data
+     */
+    public byte[] toByteArray() {
+        var bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns the file extension matching the content type, png if it is unknown.
+     *
+     * @return the file extension
+     */
+    public String getFileExtension() {
+        if (contentType != null) {
+            if (contentType.startsWith("image/jpeg")) {
+                return "jpg";
+            }
+            if (contentType.startsWith("image/webp")) {
+                return "webp";
+            }
+        }
+        return "png";
+    }
+
+    /**
+     * Decode the image.
+     *
+     * @return the image or null if the data cannot be decoded
+     * @throws IOException if an error occurs
+     */
+    @Nullable
+    public BufferedImage decode() throws IOException {
+        return ImageIO.read(new ByteBufferInputStream(data.duplicate()));
+    }
+
+    /**
+     * An input stream reading a buffer without copying it.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -25,8 +25,100 @@
  * @author Matthieu Casanova
  */
 public interface ImageCache {
+    /**
+     * Returns the tile from the cache, it may read it from disk if it is not in memory.
+     *
+     * @param tile the tile
+     * @return the image or null if it is not in cache
+     * @throws IOException if the tile cannot be read
+     */
     @Nullable
     Image getTile(Tile tile) throws IOException;
 
+    /**
+     * Returns the tile only if it is already decoded in memory.
+     * This method must never do any I/O as it is called from the paint thread.
+     * The default implementation returns null, as if no tile was kept in memory.
+     *
+     * @param tile the tile
+     * @return the image or null if it is not in memory
+     */
+    @Nullable
+    default Image getCachedTile(Tile tile) {
+        return null;
+    }
+
+    /**
+     * Returns the tile only if it is already decoded in memory.
+     * This method must never do any I/O and should not allocate as it is called from the paint thread, possibly
+     * many times per frame.
+     * The default implementation delegates to {@link #getCachedTile(Tile)}, an implementation keeping tiles in
+     * memory should override both methods to avoid allocating a tile.
+     *
+     * @param x    the x coordinate of the tile
+     * @param y    the y coordinate of the tile
+     * @param zoom the zoom level
+     * @return the image or null if it is not in memory
+     */
+    @Nullable
+    default Image getCachedTile(int x, int y, int zoom) {
+        return getCachedTile(new Tile(x, y, zoom));
+    }
+
+    /**
+     * Returns the tile only if it is already decoded in memory, without counting the lookup in the cache statistics.
+     * It is used for the tiles drawn in place of a missing tile, which are not requested by themselves.
+     * The default implementation delegates to {@link #getCachedTile(int, int, int)}.
+     *
+     * @param x    the x coordinate of the tile
+     * @param y    the y coordinate of the tile
+     * @param zoom the zoom level
+     * @return the image or null if it is not in memory
+     */
+    @Nullable
+    default Image getCachedTileQuietly(int x, int y, int zoom) {
+        return getCachedTile(x, y, zoom);
+    }
+
     void setTile(Tile tile, Image image) throws IOException;
+
+    /**
+     * Store a tile as it was downloaded.
+     * The default implementation decodes the tile and delegates to {@link #setTile(Tile, Image)}.
+     *
+     * @param tile        the tile
+     * @param encodedTile the encoded tile
+     * @throws IOException if the tile cannot be decoded or stored
+     */
+    default void setTile(Tile tile, EncodedTile encodedTile) throws IOException {
+        var image = encodedTile.decode();
+        if (image == null) {
+            throw new IOException("Unable to decode tile " + tile);
+        }
+        setTile(tile, image);
+    }
+
+    /**
+     * Returns the HTTP metadata of a stored tile, used to revalidate it once it expired.
+     * The default implementation does not keep any metadata.
+     *
+     * @param tile the tile
+     * @return the metadata or null if they are unknown
+     * @throws IOException if the metadata cannot be read
+     */
+    @Nullable
+    default TileMetadata getMetadata(Tile tile) throws IOException {
+        return null;
+    }
+
+    /**
+     * Replace the HTTP metadata of a stored tile after it was revalidated.
+     * The default implementation does nothing.
+     *
+     * @param tile     the tile
+     * @param metadata the new metadata
+     * @throws IOException if the metadata cannot be stored
+     */
+    default void setMetadata(Tile tile, TileMetadata metadata) throws IOException {
+    }
 }
@@ -17,88 +17,160 @@
 
 import com.kpouer.mapview.tile.Tile;
 import jakarta.annotation.Nullable;
-import lombok.EqualsAndHashCode;
+import lombok.Setter;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
 /**
+ * An image cache keeping the decoded tiles in a {@link MemoryCache} and storing them in a {@link TileStore}.
+ * The tiles are kept in their cheapest faithful format in the memory cache: the palette indexed and gray tiles use
+ * 1 byte per pixel, the other tiles are converted to the format of the screen so that they are painted without
+ * conversion, see {@link ImageConverter}.
+ * To keep more tiles in memory in their encoded form, use a {@link TieredTileStore} whose first tier is an
+ * {@link EncodedMemoryCache}.
+ *
  * @author Matthieu Casanova
  */
 public class ImageCacheImpl implements ImageCache {
-    private final Map<Tile, Image> map;
-    private       Path             cachePath;
+    private final MemoryCache memoryCache;
+    @Nullable
+    private final TileStore   tileStore;
+    /**
+     * True to keep the palette indexed and gray tiles as they are decoded, they use 1 byte per pixel instead of 4 but
+     * are slower to draw.
+     */
+    @Setter
+    private volatile boolean  compactImages = true;
 
     /**
      * Create an image cache
      * @param tileServerName the name of the tile server
      * @param cachePath the cache path where the downloaded tiles will be stored on disk
-     * @param capacity the cahe capacity
+     * @param capacity the cache capacity, in number of 256x256 tiles
      * @throws IOException
      */
     public ImageCacheImpl(String tileServerName, String cachePath, int capacity) throws IOException {
-        if (cachePath != null) {
-            this.cachePath = Path.of(cachePath, tileServerName);
-            Files.createDirectories(this.cachePath);
-        }
+        this(tileServerName, cachePath, new LruMemoryCache(capacity * LruMemoryCache.DEFAULT_TILE_WEIGHT));
+    }
+
+    /**
+     * Create an image cache
+     * @param tileServerName the name of the tile server
+     * @param cachePath the cache path where the downloaded tiles will be stored on disk
+     * @param memoryCache the memory cache
+     * @throws IOException
+     */
+    public ImageCacheImpl(String tileServerName, String cachePath, MemoryCache memoryCache) throws IOException {
+        this(memoryCache, cachePath == null ? null : new DiskTileStore(Path.of(cachePath, tileServerName)));
+    }
 
-        map = new TileImageLinkedHashMap(capacity);
+    /**
+     * Create an image cache
+     * @param memoryCache the memory cache
+     * @param tileStore the store where the downloaded tiles are persisted, null to keep them only in memory
+     */
+    public ImageCacheImpl(MemoryCache memoryCache, @Nullable TileStore tileStore) {
+        this.memoryCache = memoryCache;
+        this.tileStore   = tileStore;
     }
 
     @Nullable
     @Override
     public Image getTile(Tile tile) throws IOException {
-        var image = map.get(tile);
+        var image = getCachedTile(tile);
         if (image == null) {
-            image = getFromDisk(tile);
+            image = getFromStore(tile);
             if (image != null) {
-                map.put(tile, image);
+                memoryCache.put(tile, image);
             }
         }
         return image;
     }
 
     @Nullable
-    private Image getFromDisk(Tile tile) throws IOException {
-        if (cachePath == null) {
+    @Override
+    public Image getCachedTile(Tile tile) {
+        return memoryCache.get(tile.getX(), tile.getY(), tile.getZoom());
+    }
+
+    @Nullable
+    @Override
+    public Image getCachedTile(int x, int y, int zoom) {
+        return memoryCache.get(x, y, zoom);
+    }
+
+    @Nullable
+    @Override
+    public Image getCachedTileQuietly(int x, int y, int zoom) {
+        return memoryCache.getQuietly(x, y, zoom);
+    }
+
+    /**
+     * Returns the statistics of the memory cache.
+     *
+     * @return the memory cache statistics
+     */
+    public CacheStats getMemoryStats() {
+        return memoryCache.getStats();
+    }
+
+    @Nullable
+    private Image getFromStore(Tile tile) throws IOException {
+        if (tileStore == null) {
             return null;
         }
-        var keyPath = getPath(tile);
-        if (Files.exists(keyPath)) {
-            return ImageIO.read(keyPath.toFile());
+        var encodedTile = tileStore.read(tile);
+        if (encodedTile == null) {
+            return null;
         }
-        return null;
+        var image = encodedTile.decode();
+        return image == null ? null : convert(image);
     }
 
     @Override
     public void setTile(Tile tile, Image image) throws IOException {
-        map.put(tile, image);
-        var path = getPath(tile);
-        ImageIO.write((RenderedImage) image, "png", path.toFile());
+        memoryCache.put(tile, convert(image));
+        if (tileStore != null) {
+            var outputStream = new ByteArrayOutputStream();
+            ImageIO.write((RenderedImage) image, "png", outputStream);
+            tileStore.write(tile, new EncodedTile(outputStream.toByteArray(), "image/png"));
+        }
     }
 
-    private Path getPath(Tile tile) {
-        return cachePath.resolve(tile.getKey() + ".png");
+    /**
+     * Store the downloaded data as is, it is decoded only once for the memory cache.
+     */
+    @Override
+    public void setTile(Tile tile, EncodedTile encodedTile) throws IOException {
+        var image = encodedTile.decode();
+        if (image == null) {
+            throw new IOException("Unable to decode tile " + tile);
+        }
+        memoryCache.put(tile, convert(image));
+        if (tileStore != null) {
+            tileStore.write(tile, encodedTile);
+        }
     }
 
-    @EqualsAndHashCode(callSuper = true)
-    private static class TileImageLinkedHashMap extends LinkedHashMap<Tile, Image> {
-        private final int capacity;
+    private Image convert(Image image) {
+        return compactImages ? ImageConverter.toCompactImage(image) : ImageConverter.toCompatibleImage(image);
+    }
 
-        TileImageLinkedHashMap(int capacity) {
-            super(capacity + 1);
-            this.capacity = capacity;
-        }
+    @Nullable
+    @Override
+    public TileMetadata getMetadata(Tile tile) throws IOException {
+        return tileStore == null ? null : tileStore.readMetadata(tile);
+    }
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Tile, Image> eldest) {
-            return size() > capacity;
+    @Override
+    public void setMetadata(Tile tile, TileMetadata metadata) throws IOException {
+        if (tileStore != null) {
+            tileStore.updateMetadata(tile, metadata);
         }
     }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import jakarta.annotation.Nullable;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Converts the decoded tiles to the format of the screen.
+ * The images returned by {@link javax.imageio.ImageIO} are often palette indexed or of a custom type, drawing them
+ * goes through slow conversion loops at every paint. A compatible image is drawn with a plain blit, and Java2D can
+ * keep a copy of it in video memory.
+ * <p>
+ * The compact conversion keeps the images that use less than 4 bytes per pixel, palette indexed or gray, as they are
+ * 2 to 4 times smaller. Drawing them is slower, which matters little as the map view draws a tile once when it
+ * becomes visible. The images declaring an alpha channel that is fully opaque are converted to an opaque image in
+ * both cases.
+ *
+ * @author Matthieu Casanova
+ */
+public final class ImageConverter {
+    /**
+     * The configuration of the default screen, null when headless.
+     */
+    @Nullable
+    private static final GraphicsConfiguration GRAPHICS_CONFIGURATION = getDefaultConfiguration();
+
+    private ImageConverter() {
+    }
+
+    /**
+     * Returns an image in the format of the default screen with the same transparency.
+     * The image is returned as is if it is already compatible, if it is not a {@link BufferedImage} or when headless.
+     *
+     * @param image the image
+     * @return the compatible image
+     */
+    public static Image toCompatibleImage(Image image) {
+        if (!(image instanceof BufferedImage)) {
+            return image;
+        }
+        var bufferedImage = (BufferedImage) image;
+        return toCompatibleImage(bufferedImage, isOpaque(bufferedImage) ? Transparency.OPAQUE : bufferedImage.getTransparency());
+    }
+
+    /**
+     * Returns the cheapest faithful representation of an image.
+     * A palette indexed image of 8 bits or less is kept with its palette, without alpha if all the colors are opaque,
+     * a gray image is kept as is, the other images are converted to the format of the screen.
+     *
+     * @param image the image
+     * @return the compact image
+     */
+    public static Image toCompactImage(Image image) {
+        if (!(image instanceof BufferedImage)) {
+            return image;
+        }
+        var bufferedImage = (BufferedImage) image;
+        var colorModel    = bufferedImage.getColorModel();
+        int dataType      = bufferedImage.getRaster().getDataBuffer().getDataType();
+        if (colorModel instanceof IndexColorModel && dataType == DataBuffer.TYPE_BYTE) {
+            return withoutOpaqueAlpha(bufferedImage, (IndexColorModel) colorModel);
+        }
+        if (colorModel instanceof ComponentColorModel && colorModel.getNumComponents() == 1 && dataType == DataBuffer.TYPE_BYTE) {
+            return image;
+        }
+        return toCompatibleImage(image);
+    }
+
+    private static BufferedImage toCompatibleImage(BufferedImage bufferedImage, int transparency) {
+        if (GRAPHICS_CONFIGURATION == null) {
+            if (transparency == Transparency.OPAQUE && bufferedImage.getColorModel().hasAlpha()) {
+                // drop the useless alpha channel, there is no screen format to follow
+                return copy(bufferedImage, BufferedImage.TYPE_INT_RGB);
+            }
+            return bufferedImage;
+        }
+        var colorModel = GRAPHICS_CONFIGURATION.getColorModel(transparency);
+        if (colorModel.equals(bufferedImage.getColorModel()) && colorModel.isCompatibleRaster(bufferedImage.getRaster())) {
+            return bufferedImage;
+        }
+        var compatible = GRAPHICS_CONFIGURATION.createCompatibleImage(bufferedImage.getWidth(),
+                                                                      bufferedImage.getHeight(),
+                                                                      transparency);
+        var g = compatible.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(bufferedImage, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return compatible;
+    }
+
+    private static BufferedImage copy(BufferedImage bufferedImage, int type) {
+        var copy = new BufferedImage(bufferedImage.getWidth(), bufferedImage.getHeight(), type);
+        var g    = copy.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(bufferedImage, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the image with a palette without alpha if all the colors of its palette are opaque, the pixels are
+     * shared.
+     */
+    private static BufferedImage withoutOpaqueAlpha(BufferedImage image, IndexColorModel colorModel) {
+        if (colorModel.getTransparency() == Transparency.OPAQUE) {
+            return image;
+        }
+        int size   = colorModel.getMapSize();
+        var alphas = new byte[size];
+        colorModel.getAlphas(alphas);
+        for (byte alpha : alphas) {
+            if (alpha != (byte) 0xFF) {
+                return image;
+            }
+        }
+        var reds   = new byte[size];
+        var greens = new byte[size];
+        var blues  = new byte[size];
+        colorModel.getReds(reds);
+        colorModel.getGreens(greens);
+        colorModel.getBlues(blues);
+        var opaqueModel = new IndexColorModel(colorModel.getPixelSize(), size, reds, greens, blues);
+        return new BufferedImage(opaqueModel, image.getRaster(), false, null);
+    }
+
+    /**
+     * Returns true if the image has an alpha channel in which all pixels are opaque.
+     * Only the common layouts of decoded images are checked, the other images are considered translucent.
+     */
+    private static boolean isOpaque(BufferedImage image) {
+        if (!image.getColorModel().hasAlpha()) {
+            return false;
+        }
+        var dataBuffer = image.getRaster().getDataBuffer();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB: {
+                // the data is read through a copy so the image can still be accelerated
+                int   width = image.getWidth();
+                int[] line  = new int[width];
+                for (int y = 0; y < image.getHeight(); y++) {
+                    image.getRaster().getDataElements(0, y, width, 1, line);
+                    for (int pixel : line) {
+                        if (pixel >>> 24 != 0xFF) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR: {
+                // the image is converted anyway, its data can be accessed directly
+                var data = ((DataBufferByte) dataBuffer).getData();
+                for (int i = 0; i < data.length; i += 4) {
+                    if (data[i] != (byte) 0xFF) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    @Nullable
+    private static GraphicsConfiguration getDefaultConfiguration() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return null;
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import jakarta.annotation.Nullable;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+
+/**
+ * A memory cache evicting the least recently used tiles when the size of their pixels exceeds the capacity.
+ *
+ * @author Matthieu Casanova
+ */
+public class LruMemoryCache implements MemoryCache {
+    /**
+     * The size of a 256x256 ARGB tile.
+     */
+    public static final long DEFAULT_TILE_WEIGHT = 256 * 256 * 4;
+
+    private static final int MAX_CONCURRENCY_LEVEL = 16;
+    /**
+     * The minimum number of tiles in each segment so the LRU order stays meaningful.
+     */
+    private static final int MIN_TILES_PER_SEGMENT = 16;
+
+    private final TileLruMap<Image> map;
+
+    /**
+     * Create a memory cache.
+     *
+     * @param capacity the capacity in bytes of decoded pixels
+     */
+    public LruMemoryCache(long capacity) {
+        int concurrencyLevel = (int) Math.min(MAX_CONCURRENCY_LEVEL, capacity / (MIN_TILES_PER_SEGMENT * DEFAULT_TILE_WEIGHT));
+        map = new TileLruMap<>(capacity, concurrencyLevel, LruMemoryCache::getWeight);
+    }
+
+    @Nullable
+    @Override
+    public Image get(int x, int y, int zoom) {
+        return map.get(x, y, zoom);
+    }
+
+    @Nullable
+    @Override
+    public Image getQuietly(int x, int y, int zoom) {
+        return map.getQuietly(x, y, zoom);
+    }
+
+    @Override
+    public void put(Tile tile, Image image) {
+        map.put(tile.getX(), tile.getY(), tile.getZoom(), image);
+    }
+
+    @Override
+    public void remove(Tile tile) {
+        map.remove(tile.getX(), tile.getY(), tile.getZoom());
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return map.getStats();
+    }
+
+    /**
+     * Returns the size in bytes of the pixels of an image.
+     *
+     * @param image the image
+     * @return the size of the image
+     */
+    static long getWeight(Image image) {
+        if (image instanceof BufferedImage) {
+            var dataBuffer = ((BufferedImage) image).getRaster().getDataBuffer();
+            return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+        }
+        return (long) image.getWidth(null) * image.getHeight(null) * 4;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import jakarta.annotation.Nullable;
+
+import java.awt.*;
+
+/**
+ * The memory tier of an {@link ImageCache} keeping decoded tiles.
+ * Implementations must be thread safe as it is read from the paint thread while the tiles are written by the loading
+ * threads.
+ *
+ * @author Matthieu Casanova
+ */
+public interface MemoryCache {
+    /**
+     * Returns a tile, this method should not allocate as it is called from the paint thread.
+     *
+     * @param x    the x coordinate of the tile
+     * @param y    the y coordinate of the tile
+     * @param zoom the zoom level
+     * @return the image or null if it is not in the cache
+     */
+    @Nullable
+    Image get(int x, int y, int zoom);
+
+    /**
+     * Returns a tile without counting a hit or a miss in the statistics, for the lookups that do not request the tile
+     * itself such as the replacement of a missing tile.
+     * This method must not allocate.
+     * The default implementation delegates to {@link #get(int, int, int)}.
+     *
+     * @param x    the x coordinate of the tile
+     * @param y    the y coordinate of the tile
+     * @param zoom the zoom level
+     * @return the image or null if it is not in the cache
+     */
+    @Nullable
+    default Image getQuietly(int x, int y, int zoom) {
+        return get(x, y, zoom);
+    }
+
+    void put(Tile tile, Image image);
+
+    void remove(Tile tile);
+
+    void clear();
+
+    CacheStats getStats();
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import jakarta.annotation.Nullable;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+
+/**
+ * A memory cache keeping the decoded pixels out of the Java heap, so a large cache does not grow the old generation
+ * and the garbage collection pauses.
+ * <p>
+ * The pixels are stored in direct buffers, see {@link PageAllocator}, with a least recently used eviction. The palette
+ * indexed and gray tiles keep their byte pixels, with their color model on the heap, so the compact images of
+ * {@link ImageCacheImpl} still use 1 byte per pixel. Only a small number of recently used tiles are kept as images on
+ * the heap: when another tile is requested, its pixels are copied in a new image, which costs an allocation and a
+ * memory copy instead of a decoding. {@link #getQuietly(int, int, int)} only reads the heap tier and never allocates.
+ * Since the tiles drawn by the {@link com.kpouer.mapview.MapView} are kept in its back buffer, the heap tier only
+ * needs to hold the tiles drawn again soon, for example when zooming back.
+ * <p>
+ * The direct memory is limited by {@code -XX:MaxDirectMemorySize}. The direct buffers are reused after eviction and
+ * released only with the cache, they can exceed the capacity by the tiles being stored concurrently.
+ *
+ * @author Matthieu Casanova
+ */
+public class OffHeapMemoryCache implements MemoryCache {
+    /**
+     * The default capacity of the heap tier, 64 tiles of 256x256 pixels.
+     */
+    public static final long DEFAULT_HEAP_CAPACITY = 64 * LruMemoryCache.DEFAULT_TILE_WEIGHT;
+
+    private static final int MAX_CONCURRENCY_LEVEL = 16;
+    /**
+     * The minimum number of tiles in each segment so the LRU order stays meaningful.
+     */
+    private static final int MIN_TILES_PER_SEGMENT = 16;
+
+    private final PageAllocator             allocator;
+    private final TileLruMap<OffHeapPixels> offHeapMap;
+    private final TileLruMap<Image>         heapMap;
+
+    /**
+     * Create an off heap memory cache with the default heap tier capacity.
+     *
+     * @param capacity the capacity in bytes of the off heap pixels
+     */
+    public OffHeapMemoryCache(long capacity) {
+        this(capacity, DEFAULT_HEAP_CAPACITY);
+    }
+
+    /**
+     * Create an off heap memory cache.
+     *
+     * @param capacity     the capacity in bytes of the off heap pixels
+     * @param heapCapacity the capacity in bytes of the images kept on the heap
+     */
+    public OffHeapMemoryCache(long capacity, long heapCapacity) {
+        allocator  = new PageAllocator();
+        offHeapMap = new TileLruMap<>(capacity,
+                                      getConcurrencyLevel(capacity),
+                                      pixels -> (long) pixels.pages.length * PageAllocator.PAGE_SIZE,
+                                      pixels -> allocator.free(pixels.pages));
+        heapMap    = new TileLruMap<>(heapCapacity, getConcurrencyLevel(heapCapacity), LruMemoryCache::getWeight);
+    }
+
+    /**
+     * Returns a tile.
+     * Unlike the other memory caches, it allocates an image when the tile is only in the off heap tier.
+     */
+    @Nullable
+    @Override
+    public Image get(int x, int y, int zoom) {
+        var image = heapMap.get(x, y, zoom);
+        if (image == null) {
+            image = offHeapMap.getAndApply(x, y, zoom, this::toImage, true);
+            if (image != null) {
+                heapMap.put(x, y, zoom, image);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns a tile only if it is in the heap tier, so the lookups of the replacements of a missing tile never
+     * allocate.
+     */
+    @Nullable
+    @Override
+    public Image getQuietly(int x, int y, int zoom) {
+        return heapMap.getQuietly(x, y, zoom);
+    }
+
+    @Override
+    public void put(Tile tile, Image image) {
+        heapMap.put(tile.getX(), tile.getY(), tile.getZoom(), image);
+        var bufferedImage = toStorableImage(image);
+        if (bufferedImage == null) {
+            // not loaded yet, it is only kept in the heap tier
+            offHeapMap.remove(tile.getX(), tile.getY(), tile.getZoom());
+            return;
+        }
+        int   width  = bufferedImage.getWidth();
+        int   height = bufferedImage.getHeight();
+        var   data   = bufferedImage.getRaster().getDataElements(0, 0, width, height, null);
+        int[] pages  = data instanceof byte[] ?
+            allocator.allocate((byte[]) data, width * height) :
+            allocator.allocate((int[]) data, width * height);
+        offHeapMap.put(tile.getX(), tile.getY(), tile.getZoom(), new OffHeapPixels(width, height, bufferedImage.getColorModel(), pages));
+    }
+
+    @Override
+    public void remove(Tile tile) {
+        heapMap.remove(tile.getX(), tile.getY(), tile.getZoom());
+        offHeapMap.remove(tile.getX(), tile.getY(), tile.getZoom());
+    }
+
+    @Override
+    public void clear() {
+        heapMap.clear();
+        offHeapMap.clear();
+    }
+
+    /**
+     * Returns the statistics of the cache, the hits of both tiers are counted and the weight is the off heap weight.
+     */
+    @Override
+    public CacheStats getStats() {
+        var heapStats    = heapMap.getStats();
+        var offHeapStats = offHeapMap.getStats();
+        return new CacheStats(heapStats.getHitCount() + offHeapStats.getHitCount(),
+                              offHeapStats.getMissCount(),
+                              offHeapStats.getEvictionCount(),
+                              offHeapStats.getSize(),
+                              offHeapStats.getWeight(),
+                              offHeapStats.getCapacity());
+    }
+
+    /**
+     * Returns the size of the direct buffers allocated by the cache.
+     *
+     * @return the size in bytes
+     */
+    public long getReservedOffHeapSize() {
+        return allocator.getReservedSize();
+    }
+
+    /**
+     * Returns an image of the stored pixels, with the color model of the image that was put so it is as compatible
+     * with the screen and as compact.
+     */
+    private Image toImage(OffHeapPixels pixels) {
+        var colorModel = pixels.colorModel;
+        var raster     = colorModel.createCompatibleWritableRaster(pixels.width, pixels.height);
+        var image      = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+        allocator.read(pixels.pages, image);
+        return image;
+    }
+
+    /**
+     * Returns the image if its pixels are stored in one int or one byte per pixel, or a copy in ARGB.
+     *
+     * @return the image or null if it is not loaded
+     */
+    @Nullable
+    private static BufferedImage toStorableImage(Image image) {
+        if (image instanceof BufferedImage) {
+            var bufferedImage = (BufferedImage) image;
+            var raster        = bufferedImage.getRaster();
+            int transferType  = raster.getTransferType();
+            if (raster.getNumDataElements() == 1 &&
+                (transferType == DataBuffer.TYPE_INT || transferType == DataBuffer.TYPE_BYTE)) {
+                return bufferedImage;
+            }
+        }
+        int width  = image.getWidth(null);
+        int height = image.getHeight(null);
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        var type = image instanceof BufferedImage && !((BufferedImage) image).getColorModel().hasAlpha() ?
+            BufferedImage.TYPE_INT_RGB :
+            BufferedImage.TYPE_INT_ARGB;
+        var copy = new BufferedImage(width, height, type);
+        var g    = copy.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return copy;
+    }
+
+    private static int getConcurrencyLevel(long capacity) {
+        return (int) Math.min(MAX_CONCURRENCY_LEVEL, capacity / (MIN_TILES_PER_SEGMENT * LruMemoryCache.DEFAULT_TILE_WEIGHT));
+    }
+
+    /**
+     * The off heap pixels of a tile.
+     */
+    private static final class OffHeapPixels {
+        private final int        width;
+        private final int        height;
+        private final ColorModel colorModel;
+        private final int[]      pages;
+
+        private OffHeapPixels(int width, int height, ColorModel colorModel, int[] pages) {
+            this.width      = width;
+            this.height     = height;
+            this.colorModel = colorModel;
+            this.pages      = pages;
+        }
+    }
+}
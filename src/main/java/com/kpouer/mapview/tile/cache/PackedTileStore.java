@@ -0,0 +1,752 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import jakarta.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A tile store keeping the tiles in a few append only pack files instead of one file per tile.
+ * <p>
+ * Each pack starts with a header (magic and version) followed by records:
+ * zoom, x, y (int), data length (int, -1 for a removed tile), content type length (byte), content type (UTF-8),
+ * metadata length (short), metadata, data.
+ * The metadata are the expiration (long), then the ETag and the Last-Modified header, each as a length (short) and
+ * UTF-8 bytes. Packs of another version are deleted at startup.
+ * The offset of the tiles is kept in memory and rebuilt by scanning the packs at startup, the latest record of a
+ * tile wins. Reads are done through memory mapped buffers without copying the data, the packs are mapped in chunks
+ * of 16 MB and a record spanning two chunks is copied.
+ * <p>
+ * When a tile is replaced or removed its previous record becomes dead. A pack with too many dead bytes is compacted
+ * in background: its live records are copied to the current pack and the pack is marked as retired. The tiles
+ * already read from it stay valid, the file is deleted once its mappings are garbage collected, or at the next
+ * startup.
+ * <p>
+ * {@link #close()} waits for the compaction in progress and closes the packs, the mappings of the tiles already read
+ * stay valid until they are garbage collected.
+ *
+ * @author Matthieu Casanova
+ */
+@Slf4j
+public class PackedTileStore implements TileStore {
+    public static final  long   DEFAULT_MAX_PACK_SIZE = 256L * 1024 * 1024;
+
+    private static final int    MAGIC              = 0x4B4D5450; // KMTP
+    private static final int    VERSION            = 2;
+    /**
+     * The version written in the header of a compacted pack, so it is deleted at startup if it is still there.
+     */
+    private static final int    RETIRED_VERSION    = 0;
+    private static final int    FILE_HEADER_SIZE   = 8;
+    private static final int    RECORD_HEADER_SIZE = 17;
+    /**
+     * The offset of the content type length in a record.
+     */
+    private static final int    TYPE_LENGTH_OFFSET = 16;
+    private static final int    METADATA_SIZE_SIZE = 2;
+    private static final int    REMOVED            = -1;
+    private static final String PACK_PREFIX        = "tiles-";
+    private static final String PACK_SUFFIX        = ".pack";
+    /**
+     * A pack is compacted when this ratio of its bytes is dead.
+     */
+    private static final double COMPACTION_RATIO   = 0.5;
+    private static final int    CHUNK_SIZE         = 16 * 1024 * 1024;
+    private static final int    MAX_CHUNKS         = Integer.MAX_VALUE / CHUNK_SIZE + 1;
+    /**
+     * Notified when the mapped chunks are garbage collected.
+     */
+    private static final Cleaner CLEANER           = Cleaner.create();
+
+    private final    Path                   directory;
+    private final    long                   maxPackSize;
+    private final    Map<Tile, Location>    index;
+    /**
+     * The packs by id, guarded by this.
+     */
+    private final    TreeMap<Integer, Pack> packs;
+    private final    ExecutorService        compactor;
+    /**
+     * The compacted packs that are not deleted yet, only used by the compactor thread.
+     */
+    private final    List<Pack>             retiredPacks;
+    private          Pack                   currentPack;
+    private volatile boolean                closed;
+
+    /**
+     * Create a packed tile store with packs of at most {@link #DEFAULT_MAX_PACK_SIZE} bytes.
+     *
+     * @param directory the directory of the pack files
+     * @throws IOException if the packs cannot be opened
+     */
+    public PackedTileStore(Path directory) throws IOException {
+        this(directory, DEFAULT_MAX_PACK_SIZE);
+    }
+
+    /**
+     * Create a packed tile store.
+     *
+     * @param directory   the directory of the pack files
+     * @param maxPackSize the size after which a new pack is started, at most 1 GB
+     * @throws IOException if the packs cannot be opened
+     */
+    public PackedTileStore(Path directory, long maxPackSize) throws IOException {
+        if (maxPackSize > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("The max pack size cannot exceed 1 GB");
+        }
+        Files.createDirectories(directory);
+        this.directory   = directory;
+        this.maxPackSize = maxPackSize;
+        index            = new ConcurrentHashMap<>();
+        packs            = new TreeMap<>();
+        retiredPacks     = new ArrayList<>();
+        compactor        = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "PackedTileStore-" + directory.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        openPacks();
+    }
+
+    @Nullable
+    @Override
+    public EncodedTile read(Tile tile) throws IOException {
+        ensureOpen();
+        var location = index.get(tile);
+        if (location == null) {
+            return null;
+        }
+        try {
+            return read(location);
+        } catch (IOException e) {
+            // the pack was compacted meanwhile, the tile may have moved
+            var newLocation = index.get(tile);
+            if (newLocation == null || newLocation == location) {
+                return null;
+            }
+            return read(newLocation);
+        }
+    }
+
+    @Nullable
+    @Override
+    public TileMetadata readMetadata(Tile tile) throws IOException {
+        ensureOpen();
+        var location = index.get(tile);
+        if (location == null) {
+            return null;
+        }
+        try {
+            return readMetadata(location);
+        } catch (IOException e) {
+            // the pack was compacted meanwhile, the tile may have moved
+            var newLocation = index.get(tile);
+            if (newLocation == null || newLocation == location) {
+                return null;
+            }
+            return readMetadata(newLocation);
+        }
+    }
+
+    @Override
+    public void write(Tile tile, EncodedTile encodedTile) throws IOException {
+        var contentType = encodedTile.getContentType();
+        var typeBytes   = contentType == null ? new byte[0] : contentType.getBytes(StandardCharsets.UTF_8);
+        if (typeBytes.length > 255) {
+            contentType = null;
+            typeBytes   = new byte[0];
+        }
+        var metadata    = encodeMetadata(encodedTile.getMetadata());
+        var data        = encodedTile.getData();
+        var header      = ByteBuffer.allocate(RECORD_HEADER_SIZE + typeBytes.length + METADATA_SIZE_SIZE + metadata.length);
+        header.putInt(tile.getZoom()).putInt(tile.getX()).putInt(tile.getY()).putInt(data.remaining());
+        header.put((byte) typeBytes.length).put(typeBytes);
+        header.putShort((short) metadata.length).put(metadata).flip();
+        synchronized (this) {
+            ensureOpen();
+            var location = append(header, data, contentType);
+            markDead(index.put(tile, location));
+        }
+    }
+
+    @Override
+    public void remove(Tile tile) throws IOException {
+        synchronized (this) {
+            ensureOpen();
+            var previous = index.remove(tile);
+            if (previous != null) {
+                appendTombstone(tile);
+                markDead(previous);
+            }
+        }
+    }
+
+    /**
+     * Wait for the compaction in progress and close the packs.
+     *
+     * @throws IOException if a pack cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the compaction");
+        }
+        IOException exception = null;
+        synchronized (this) {
+            for (var pack : packs.values()) {
+                try {
+                    pack.close();
+                } catch (IOException e) {
+                    if (exception == null) {
+                        exception = e;
+                    } else {
+                        exception.addSuppressed(e);
+                    }
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Returns the total size of the packs.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getSize() {
+        long size = 0;
+        for (var pack : packs.values()) {
+            size += pack.size;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the size of the dead records, that will be reclaimed by compaction.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getDeadSize() {
+        long size = 0;
+        for (var pack : packs.values()) {
+            size += pack.deadBytes.get();
+        }
+        return size;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The store " + directory + " is closed");
+        }
+    }
+
+    private void openPacks() throws IOException {
+        try (var paths = Files.newDirectoryStream(directory, PACK_PREFIX + "*" + PACK_SUFFIX)) {
+            for (var path : paths) {
+                var fileName = path.getFileName().toString();
+                int id       = Integer.parseInt(fileName.substring(PACK_PREFIX.length(), fileName.length() - PACK_SUFFIX.length()));
+                packs.put(id, new Pack(id, path));
+            }
+        }
+        for (var iterator = packs.values().iterator(); iterator.hasNext(); ) {
+            var pack = iterator.next();
+            if (!scan(pack)) {
+                if (pack.readHeaderInt(4) == RETIRED_VERSION) {
+                    log.debug("Deleting {}, it was compacted", pack.path);
+                } else {
+                    log.warn("Deleting {}, it is not a pack of version {}", pack.path, VERSION);
+                }
+                pack.channel.close();
+                Files.delete(pack.path);
+                iterator.remove();
+            }
+        }
+        if (packs.isEmpty()) {
+            newPack();
+        } else {
+            currentPack = packs.lastEntry().getValue();
+        }
+        for (var pack : packs.values()) {
+            if (pack != currentPack && pack.needsCompaction()) {
+                scheduleCompaction(pack);
+            }
+        }
+        log.info("Opened {} packs containing {} tiles in {}", packs.size(), index.size(), directory);
+    }
+
+    /**
+     * Add the records of a pack to the index, a truncated record at the end is discarded.
+     *
+     * @return false if the file is not a pack of the current version
+     */
+    private boolean scan(Pack pack) throws IOException {
+        long fileSize = pack.channel.size();
+        if (fileSize < FILE_HEADER_SIZE) {
+            pack.initHeader();
+            return true;
+        }
+        // the header is not mapped so that an invalid pack can be deleted
+        if (pack.readHeaderInt(0) != MAGIC || pack.readHeaderInt(4) != VERSION) {
+            return false;
+        }
+        int offset = FILE_HEADER_SIZE;
+        while (true) {
+            var record = readRecord(pack, offset, fileSize);
+            if (record == null) {
+                break;
+            }
+            var tile = new Tile(record.x, record.y, record.zoom);
+            if (record.length == REMOVED) {
+                markDead(index.remove(tile));
+                pack.deadBytes.addAndGet(record.end - offset);
+            } else {
+                var typeBytes = new byte[record.typeLength];
+                pack.slice(offset + RECORD_HEADER_SIZE, record.typeLength).get(typeBytes);
+                var contentType = record.typeLength == 0 ? null : new String(typeBytes, StandardCharsets.UTF_8);
+                markDead(index.put(tile, new Location(pack, offset, record.dataOffset, record.length, contentType)));
+            }
+            offset = record.end;
+        }
+        if (offset < fileSize) {
+            log.warn("Truncating {} at {}, the last record is incomplete", pack.path, offset);
+            pack.channel.truncate(offset);
+        }
+        pack.size = offset;
+        return true;
+    }
+
+    /**
+     * Append a record to the current pack, must be called holding the lock.
+     */
+    private Location append(ByteBuffer header, ByteBuffer data, @Nullable String contentType) throws IOException {
+        int recordSize = header.remaining() + data.remaining();
+        if (currentPack.size + recordSize > maxPackSize && currentPack.size > FILE_HEADER_SIZE) {
+            newPack();
+        }
+        var  pack       = currentPack;
+        long offset     = pack.size;
+        long dataOffset = offset + header.remaining();
+        int  length     = data.remaining();
+        pack.write(header, offset);
+        pack.write(data, dataOffset);
+        pack.size = offset + recordSize;
+        return new Location(pack, (int) offset, (int) dataOffset, length, contentType);
+    }
+
+    private void appendTombstone(Tile tile) throws IOException {
+        var header = ByteBuffer.allocate(RECORD_HEADER_SIZE + METADATA_SIZE_SIZE);
+        header.putInt(tile.getZoom()).putInt(tile.getX()).putInt(tile.getY()).putInt(REMOVED).put((byte) 0).putShort((short) 0).flip();
+        var location = append(header, ByteBuffer.allocate(0), null);
+        location.pack.deadBytes.addAndGet(header.capacity());
+    }
+
+    private void newPack() throws IOException {
+        int id   = packs.isEmpty() ? 0 : packs.lastKey() + 1;
+        var pack = new Pack(id, directory.resolve(String.format("%s%06d%s", PACK_PREFIX, id, PACK_SUFFIX)));
+        pack.initHeader();
+        packs.put(id, pack);
+        var previous = currentPack;
+        currentPack = pack;
+        if (previous != null && previous.needsCompaction()) {
+            scheduleCompaction(previous);
+        }
+    }
+
+    private void markDead(@Nullable Location location) {
+        if (location != null) {
+            var pack = location.pack;
+            pack.deadBytes.addAndGet(location.getRecordSize());
+            if (pack != currentPack && pack.needsCompaction()) {
+                scheduleCompaction(pack);
+            }
+        }
+    }
+
+    private void scheduleCompaction(Pack pack) {
+        if (!pack.compactionScheduled) {
+            pack.compactionScheduled = true;
+            compactor.execute(() -> compact(pack));
+        }
+    }
+
+    /**
+     * Copy the live records of a pack to the current pack and retire it.
+     */
+    private void compact(Pack pack) {
+        try {
+            int     offset = FILE_HEADER_SIZE;
+            int     moved  = 0;
+            boolean oldest;
+            synchronized (this) {
+                oldest = packs.firstKey() == pack.id;
+            }
+            while (offset < pack.size) {
+                var record = readRecord(pack, offset, pack.size);
+                if (record == null) {
+                    throw new EOFException("Incomplete record at " + offset);
+                }
+                var tile = new Tile(record.x, record.y, record.zoom);
+                synchronized (this) {
+                    var location = index.get(tile);
+                    if (record.length == REMOVED) {
+                        // an older pack may still contain the removed tile
+                        if (!oldest && location == null) {
+                            appendTombstone(tile);
+                        }
+                    } else if (location != null && location.pack == pack && location.offset == offset) {
+                        var header = pack.slice(offset, record.dataOffset - offset);
+                        var data   = pack.slice(record.dataOffset, record.length);
+                        index.put(tile, append(header, data, location.contentType));
+                        moved++;
+                    }
+                }
+                offset = record.end;
+            }
+            synchronized (this) {
+                packs.remove(pack.id);
+            }
+            pack.retire();
+            retiredPacks.add(pack);
+            log.debug("Compacted {}, {} tiles moved", pack.path, moved);
+        } catch (IOException e) {
+            log.error("Unable to compact {}", pack.path, e);
+        }
+        deleteRetiredPacks();
+    }
+
+    /**
+     * Delete the retired packs that are no longer mapped, the others are tried again later.
+     */
+    private void deleteRetiredPacks() {
+        for (var iterator = retiredPacks.iterator(); iterator.hasNext(); ) {
+            var pack = iterator.next();
+            if (pack.mappingCount.get() == 0) {
+                try {
+                    Files.deleteIfExists(pack.path);
+                    iterator.remove();
+                } catch (IOException e) {
+                    // the unmapping may not be done yet
+                    log.debug("Unable to delete {} yet", pack.path, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the header of a record.
+     *
+     * @param pack   the pack
+     * @param offset the offset of the record
+     * @param limit  the size of the pack
+     * @return the record or null if it is incomplete
+     */
+    @Nullable
+    private static RecordHeader readRecord(Pack pack, int offset, long limit) throws IOException {
+        if (offset + RECORD_HEADER_SIZE > limit) {
+            return null;
+        }
+        var header         = pack.slice(offset, RECORD_HEADER_SIZE);
+        int typeLength     = header.get(TYPE_LENGTH_OFFSET) & 0xFF;
+        int metadataOffset = offset + RECORD_HEADER_SIZE + typeLength;
+        if (metadataOffset + METADATA_SIZE_SIZE > limit) {
+            return null;
+        }
+        int dataOffset = metadataOffset + METADATA_SIZE_SIZE + (pack.slice(metadataOffset, METADATA_SIZE_SIZE).getShort(0) & 0xFFFF);
+        int length     = header.getInt(12);
+        var record     = new RecordHeader(header.getInt(0), header.getInt(4), header.getInt(8), length, typeLength, dataOffset);
+        if (record.end > limit) {
+            return null;
+        }
+        return record;
+    }
+
+    private static byte[] encodeMetadata(@Nullable TileMetadata metadata) {
+        if (metadata == null) {
+            return new byte[0];
+        }
+        var etag         = toBytes(metadata.getEtag());
+        var lastModified = toBytes(metadata.getLastModified());
+        if (etag.length + lastModified.length > Short.MAX_VALUE) {
+            return new byte[0];
+        }
+        return ByteBuffer.allocate(Long.BYTES + 2 * Short.BYTES + etag.length + lastModified.length)
+                         .putLong(metadata.getExpires())
+                         .putShort((short) etag.length).put(etag)
+                         .putShort((short) lastModified.length).put(lastModified)
+                         .array();
+    }
+
+    private static byte[] toBytes(@Nullable String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static EncodedTile read(Location location) throws IOException {
+        var data = location.pack.slice(location.dataOffset, location.length);
+        return new EncodedTile(data, location.contentType, readMetadata(location));
+    }
+
+    @Nullable
+    private static TileMetadata readMetadata(Location location) throws IOException {
+        // the length in bytes as stored, not the length of the decoded string
+        int typeLength     = location.pack.slice(location.offset + TYPE_LENGTH_OFFSET, 1).get(0) & 0xFF;
+        int metadataOffset = location.offset + RECORD_HEADER_SIZE + typeLength + METADATA_SIZE_SIZE;
+        if (metadataOffset == location.dataOffset) {
+            return null;
+        }
+        var  buffer       = location.pack.slice(metadataOffset, location.dataOffset - metadataOffset);
+        long expires      = buffer.getLong();
+        var  etag         = readString(buffer);
+        var  lastModified = readString(buffer);
+        return new TileMetadata(etag, lastModified, expires);
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length == 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private final class Pack {
+        private final    int                                    id;
+        private final    Path                                   path;
+        private final    FileChannel                            channel;
+        private final    AtomicLong                             deadBytes;
+        /**
+         * The mapped chunks, the last one is mapped again when the pack grows.
+         */
+        private final    AtomicReferenceArray<MappedByteBuffer> chunks;
+        /**
+         * The number of mappings not garbage collected yet, they may only be referenced by the tiles read.
+         */
+        private final    AtomicInteger                          mappingCount;
+        /**
+         * The size of the valid records, guarded by the store lock.
+         */
+        private volatile long                                   size;
+        private          boolean                                compactionScheduled;
+        private volatile boolean                                retired;
+
+        private Pack(int id, Path path) throws IOException {
+            this.id      = id;
+            this.path    = path;
+            channel      = FileChannel.open(path, CREATE, READ, WRITE);
+            deadBytes    = new AtomicLong();
+            chunks       = new AtomicReferenceArray<>(MAX_CHUNKS);
+            mappingCount = new AtomicInteger();
+        }
+
+        private void initHeader() throws IOException {
+            var header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+            channel.truncate(0);
+            write(header, 0);
+            size = FILE_HEADER_SIZE;
+        }
+
+        private void write(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        private boolean needsCompaction() {
+            return size > FILE_HEADER_SIZE && deadBytes.get() >= (size - FILE_HEADER_SIZE) * COMPACTION_RATIO;
+        }
+
+        /**
+         * Returns a part of the pack, mapped unless it spans two chunks.
+         */
+        private ByteBuffer slice(int offset, int length) throws IOException {
+            int index = offset / CHUNK_SIZE;
+            int start = offset - index * CHUNK_SIZE;
+            if (start + length > CHUNK_SIZE) {
+                var buffer = ByteBuffer.allocate(length);
+                read(buffer, offset);
+                return buffer.flip();
+            }
+            var buffer = map(index, start + length).duplicate();
+            buffer.position(start).limit(start + length);
+            return buffer.slice();
+        }
+
+        /**
+         * Returns a chunk mapped at least up to the given length, only the chunk at the end of the pack is mapped
+         * again when the pack grows.
+         */
+        private MappedByteBuffer map(int index, int minLength) throws IOException {
+            var buffer = chunks.get(index);
+            if (buffer == null || buffer.capacity() < minLength) {
+                synchronized (this) {
+                    buffer = chunks.get(index);
+                    if (buffer == null || buffer.capacity() < minLength) {
+                        long position = (long) index * CHUNK_SIZE;
+                        long length   = Math.min(CHUNK_SIZE, channel.size() - position);
+                        if (length < minLength) {
+                            throw new EOFException("Reading after the end of " + path);
+                        }
+                        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                        chunks.set(index, buffer);
+                        mappingCount.incrementAndGet();
+                        CLEANER.register(buffer, this::mappingReleased);
+                    }
+                }
+            }
+            return buffer;
+        }
+
+        private void read(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException("Reading after the end of " + path);
+                }
+                position += read;
+            }
+        }
+
+        /**
+         * Read an int of the file header without mapping it.
+         *
+         * @return the int or -1 if the file is too small
+         */
+        private int readHeaderInt(int position) throws IOException {
+            var buffer = ByteBuffer.allocate(Integer.BYTES);
+            try {
+                read(buffer, position);
+            } catch (EOFException e) {
+                return -1;
+            }
+            return buffer.getInt(0);
+        }
+
+        /**
+         * Mark the pack as compacted and release its mappings, they stay valid for the tiles already read.
+         */
+        private synchronized void retire() throws IOException {
+            retired = true;
+            write(ByteBuffer.allocate(Integer.BYTES).putInt(RETIRED_VERSION).flip(), 4);
+            close();
+        }
+
+        /**
+         * Close the file and release the mappings, they stay valid for the tiles already read.
+         */
+        private synchronized void close() throws IOException {
+            channel.close();
+            for (int i = 0; i < chunks.length(); i++) {
+                chunks.set(i, null);
+            }
+        }
+
+        /**
+         * Called by the cleaner thread when a mapping was garbage collected.
+         */
+        private void mappingReleased() {
+            if (mappingCount.decrementAndGet() == 0 && retired && !closed) {
+                try {
+                    compactor.execute(PackedTileStore.this::deleteRetiredPacks);
+                } catch (RejectedExecutionException e) {
+                    // closed meanwhile, the pack is deleted at the next startup
+                }
+            }
+        }
+    }
+
+    private static final class RecordHeader {
+        private final int zoom;
+        private final int x;
+        private final int y;
+        private final int length;
+        private final int typeLength;
+        private final int dataOffset;
+        private final int end;
+
+        private RecordHeader(int zoom, int x, int y, int length, int typeLength, int dataOffset) {
+            this.zoom       = zoom;
+            this.x          = x;
+            this.y          = y;
+            this.length     = length;
+            this.typeLength = typeLength;
+            this.dataOffset = dataOffset;
+            end             = dataOffset + Math.max(length, 0);
+        }
+    }
+
+    private static final class Location {
+        private final Pack   pack;
+        private final int    offset;
+        private final int    dataOffset;
+        private final int    length;
+        @Nullable
+        private final String contentType;
+
+        private Location(Pack pack, int offset, int dataOffset, int length, @Nullable String contentType) {
+            this.pack        = pack;
+            this.offset      = offset;
+            this.dataOffset  = dataOffset;
+            this.length      = length;
+            this.contentType = contentType;
+        }
+
+        private int getRecordSize() {
+            return dataOffset - offset + length;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Allocates pixels out of the Java heap, in fixed size pages carved from direct buffer slabs.
+ * The free pages are kept in a stack so a freed page is reused first. The slabs are allocated when there is no free
+ * page and never released, the pages of an entry do not need to be contiguous.
+ * The pixels are stored as ints or as bytes for the palette indexed and gray images, so they keep their size.
+ *
+ * @author Matthieu Casanova
+ */
+final class PageAllocator {
+    /**
+     * The size of a page, a 256x256 tile uses 4 pages with int pixels and 1 page with byte pixels.
+     */
+    static final int PAGE_SIZE = 64 * 1024;
+
+    private static final int PAGE_INTS      = PAGE_SIZE / Integer.BYTES;
+    private static final int PAGES_PER_SLAB = 64;
+
+    private final List<ByteBuffer> slabs;
+    private       int[]            freePages;
+    private       int              freeCount;
+    /**
+     * The pixels of the last read tile, reused to avoid allocating on each read.
+     */
+    private       int[]            intScratch;
+    private       byte[]           byteScratch;
+
+    PageAllocator() {
+        slabs       = new ArrayList<>();
+        freePages   = new int[PAGES_PER_SLAB];
+        intScratch  = new int[0];
+        byteScratch = new byte[0];
+    }
+
+    /**
+     * Returns the number of pages needed by some pixels.
+     *
+     * @param size the size of the pixels in bytes
+     * @return the number of pages
+     */
+    static int getPageCount(long size) {
+        return (int) ((size + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /**
+     * Allocate pages and write int pixels in them.
+     *
+     * @param pixels the pixels
+     * @param length the number of pixels
+     * @return the pages
+     */
+    synchronized int[] allocate(int[] pixels, int length) {
+        var pages = allocatePages(getPageCount((long) length * Integer.BYTES));
+        for (int i = 0, offset = 0; offset < length; i++, offset += PAGE_INTS) {
+            getPage(pages[i]).asIntBuffer().put(pixels, offset, Math.min(PAGE_INTS, length - offset));
+        }
+        return pages;
+    }
+
+    /**
+     * Allocate pages and write byte pixels in them.
+     *
+     * @param pixels the pixels
+     * @param length the number of pixels
+     * @return the pages
+     */
+    synchronized int[] allocate(byte[] pixels, int length) {
+        var pages = allocatePages(getPageCount(length));
+        for (int i = 0, offset = 0; offset < length; i++, offset += PAGE_SIZE) {
+            getPage(pages[i]).put(pixels, offset, Math.min(PAGE_SIZE, length - offset));
+        }
+        return pages;
+    }
+
+    /**
+     * Copy pixels in an image whose raster has one int or one byte element per pixel, as they were allocated.
+     * The pixels are set through the raster so Java2D can still cache the image in video memory.
+     *
+     * @param pages the pages
+     * @param image the image
+     */
+    synchronized void read(int[] pages, BufferedImage image) {
+        var raster = image.getRaster();
+        int width  = image.getWidth();
+        int height = image.getHeight();
+        int length = width * height;
+        if (raster.getTransferType() == DataBuffer.TYPE_BYTE) {
+            if (byteScratch.length < length) {
+                byteScratch = new byte[length];
+            }
+            for (int i = 0, offset = 0; offset < length; i++, offset += PAGE_SIZE) {
+                getPage(pages[i]).get(byteScratch, offset, Math.min(PAGE_SIZE, length - offset));
+            }
+            raster.setDataElements(0, 0, width, height, byteScratch);
+        } else {
+            if (intScratch.length < length) {
+                intScratch = new int[length];
+            }
+            for (int i = 0, offset = 0; offset < length; i++, offset += PAGE_INTS) {
+                getPage(pages[i]).asIntBuffer().get(intScratch, offset, Math.min(PAGE_INTS, length - offset));
+            }
+            raster.setDataElements(0, 0, width, height, intScratch);
+        }
+    }
+
+    synchronized void free(int[] pages) {
+        for (int page : pages) {
+            freePages[freeCount++] = page;
+        }
+    }
+
+    /**
+     * Returns the size of the direct buffers allocated so far.
+     *
+     * @return the size in bytes
+     */
+    synchronized long getReservedSize() {
+        return (long) slabs.size() * PAGES_PER_SLAB * PAGE_SIZE;
+    }
+
+    private int[] allocatePages(int count) {
+        var pages = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (freeCount == 0) {
+                addSlab();
+            }
+            pages[i] = freePages[--freeCount];
+        }
+        return pages;
+    }
+
+    /**
+     * Returns a page, as a buffer positioned at its start and limited to its size.
+     */
+    private ByteBuffer getPage(int page) {
+        var slab  = slabs.get(page / PAGES_PER_SLAB);
+        int start = page % PAGES_PER_SLAB * PAGE_SIZE;
+        slab.limit(start + PAGE_SIZE).position(start);
+        return slab;
+    }
+
+    private void addSlab() {
+        int first = slabs.size() * PAGES_PER_SLAB;
+        slabs.add(ByteBuffer.allocateDirect(PAGES_PER_SLAB * PAGE_SIZE).order(ByteOrder.nativeOrder()));
+        if (freePages.length < slabs.size() * PAGES_PER_SLAB) {
+            freePages = Arrays.copyOf(freePages, slabs.size() * PAGES_PER_SLAB);
+        }
+        // the lowest pages are on top of the stack
+        for (int page = first + PAGES_PER_SLAB - 1; page >= first; page--) {
+            freePages[freeCount++] = page;
+        }
+    }
+}
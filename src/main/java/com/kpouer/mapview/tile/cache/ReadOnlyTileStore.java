@@ -0,0 +1,64 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import jakarta.annotation.Nullable;
+
+import java.io.IOException;
+
+/**
+ * A tile store that is only read, for example a seed cache shared between several applications.
+ * The writes, metadata updates and removals are ignored.
+ *
+ * @author Matthieu Casanova
+ */
+public class ReadOnlyTileStore implements TileStore {
+    private final TileStore tileStore;
+
+    public ReadOnlyTileStore(TileStore tileStore) {
+        this.tileStore = tileStore;
+    }
+
+    @Nullable
+    @Override
+    public EncodedTile read(Tile tile) throws IOException {
+        return tileStore.read(tile);
+    }
+
+    @Nullable
+    @Override
+    public TileMetadata readMetadata(Tile tile) throws IOException {
+        return tileStore.readMetadata(tile);
+    }
+
+    @Override
+    public void write(Tile tile, EncodedTile encodedTile) {
+    }
+
+    @Override
+    public void updateMetadata(Tile tile, TileMetadata metadata) {
+    }
+
+    @Override
+    public void remove(Tile tile) {
+    }
+
+    @Override
+    public void close() throws IOException {
+        tileStore.close();
+    }
+}
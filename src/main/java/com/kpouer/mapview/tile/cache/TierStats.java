@@ -0,0 +1,51 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A snapshot of the statistics of a tier of a {@link TieredTileStore}.
+ *
+ * @author Matthieu Casanova
+ */
+@AllArgsConstructor
+@Getter
+@ToString
+public class TierStats {
+    /**
+     * The name of the tier, the simple name of its class.
+     */
+    private final String name;
+    private final long   hitCount;
+    private final long   missCount;
+    /**
+     * The number of tiles written in the tier, including the promotions.
+     */
+    private final long   writeCount;
+    /**
+     * The number of tiles copied from a lower tier.
+     */
+    private final long   promotionCount;
+    private final long   errorCount;
+
+    public double getHitRate() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import jakarta.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A tile store made of several tiers, the fastest first, for example an {@link EncodedMemoryCache}, a
+ * {@link PackedTileStore} and a {@link ReadOnlyTileStore} shared seed cache.
+ * <p>
+ * The tiers are read in order, a tile found in a tier is promoted to the tiers above it. The tiles are written to
+ * the first tier immediately and, with write behind, to the other tiers by a background thread: the tiles waiting to
+ * be written are kept in memory and can be read meanwhile, and a tile written several times before being persisted
+ * is persisted once. A tier that fails is skipped, the failures are counted in its statistics.
+ * <p>
+ * A promotion is dropped if the tile was written, updated or removed since it was read, the promoted copy could
+ * otherwise replace a newer one.
+ * <p>
+ * Once {@link #close() closed}, the store throws an {@link IOException} on every access.
+ * <p>
+ * The network is not a tier: the {@link com.kpouer.mapview.tile.DefaultTileServer} downloads the tiles missing from
+ * the {@link ImageCache} and writes them in it.
+ *
+ * @author Matthieu Casanova
+ */
+@Slf4j
+public class TieredTileStore implements TileStore {
+    private static final int STAMP_STRIPES = 1024;
+
+    private final    List<Tier>             tiers;
+    /**
+     * The thread writing to the tiers below the first one, null to write them immediately.
+     */
+    @Nullable
+    private final    ExecutorService        writer;
+    /**
+     * The tiles waiting to be written to the tiers below the first one.
+     */
+    private final    Map<Tile, EncodedTile> pendingWrites;
+    /**
+     * Incremented when a tile is written, updated or removed, by stripes of tiles, so the promotions of the tiles
+     * read before are dropped.
+     */
+    private final    AtomicLongArray        stamps;
+    private volatile boolean                closed;
+
+    /**
+     * Create a tiered tile store with write behind.
+     *
+     * @param tileStores the tiers, the fastest first
+     */
+    public TieredTileStore(TileStore... tileStores) {
+        this(true, tileStores);
+    }
+
+    /**
+     * Create a tiered tile store.
+     *
+     * @param writeBehind true to write the tiers below the first one in background
+     * @param tileStores  the tiers, the fastest first
+     */
+    public TieredTileStore(boolean writeBehind, TileStore... tileStores) {
+        if (tileStores.length == 0) {
+            throw new IllegalArgumentException("At least one tier is needed");
+        }
+        tiers = new ArrayList<>(tileStores.length);
+        for (var tileStore : tileStores) {
+            tiers.add(new Tier(tileStore));
+        }
+        pendingWrites = new ConcurrentHashMap<>();
+        stamps        = new AtomicLongArray(STAMP_STRIPES);
+        if (writeBehind && tileStores.length > 1) {
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                var thread = new Thread(runnable, "TieredTileStore");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            writer = null;
+        }
+    }
+
+    @Nullable
+    @Override
+    public EncodedTile read(Tile tile) throws IOException {
+        ensureOpen();
+        long stamp = getStamp(tile);
+        for (int i = 0; i < tiers.size(); i++) {
+            var tier        = tiers.get(i);
+            var encodedTile = tier.read(tile);
+            if (encodedTile == null && i == 0) {
+                // it may have been evicted from the first tier before being written below
+                encodedTile = pendingWrites.get(tile);
+            }
+            if (encodedTile != null) {
+                promote(tile, encodedTile, i, stamp);
+                return encodedTile;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public TileMetadata readMetadata(Tile tile) throws IOException {
+        ensureOpen();
+        for (int i = 0; i < tiers.size(); i++) {
+            var tier = tiers.get(i);
+            try {
+                var metadata = tier.tileStore.readMetadata(tile);
+                if (metadata != null) {
+                    return metadata;
+                }
+            } catch (IOException e) {
+                tier.errorCount.increment();
+                log.warn("Unable to read the metadata of {} from {}", tile, tier.name, e);
+            }
+            if (i == 0) {
+                var pending = pendingWrites.get(tile);
+                if (pending != null) {
+                    return pending.getMetadata();
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void write(Tile tile, EncodedTile encodedTile) throws IOException {
+        ensureOpen();
+        incrementStamp(tile);
+        var first = tiers.get(0);
+        first.tileStore.write(tile, encodedTile);
+        first.writeCount.increment();
+        if (writer == null) {
+            for (int i = 1; i < tiers.size(); i++) {
+                tiers.get(i).write(tile, encodedTile, false);
+            }
+        } else if (pendingWrites.put(tile, encodedTile) == null) {
+            executeInWriter(() -> persist(tile));
+        }
+    }
+
+    @Override
+    public void updateMetadata(Tile tile, TileMetadata metadata) throws IOException {
+        ensureOpen();
+        incrementStamp(tile);
+        tiers.get(0).tileStore.updateMetadata(tile, metadata);
+        pendingWrites.computeIfPresent(tile, (key, encodedTile) -> encodedTile.withMetadata(metadata));
+        runBelowFirstTier(tier -> tier.tileStore.updateMetadata(tile, metadata), "update the metadata of " + tile);
+    }
+
+    @Override
+    public void remove(Tile tile) throws IOException {
+        ensureOpen();
+        incrementStamp(tile);
+        pendingWrites.remove(tile);
+        tiers.get(0).tileStore.remove(tile);
+        runBelowFirstTier(tier -> tier.tileStore.remove(tile), "remove " + tile);
+    }
+
+    /**
+     * Wait until the tiles written so far are written in all the tiers.
+     *
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public void flush() throws InterruptedException {
+        if (writer != null) {
+            try {
+                writer.submit(() -> {}).get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Write the pending tiles in all the tiers, stop the writer thread and close the tiers.
+     *
+     * @throws IOException if a tier cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (writer != null) {
+            // the writes already queued are done before the thread stops
+            writer.shutdown();
+            try {
+                writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the pending tiles");
+            }
+        }
+        IOException exception = null;
+        for (var tier : tiers) {
+            try {
+                tier.tileStore.close();
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                } else {
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Returns the number of tiles waiting to be written to the tiers below the first one.
+     *
+     * @return the number of tiles
+     */
+    public int getPendingWriteCount() {
+        return pendingWrites.size();
+    }
+
+    /**
+     * Returns the statistics of the tiers.
+     *
+     * @return the statistics of each tier, the fastest first
+     */
+    public List<TierStats> getStats() {
+        var stats = new ArrayList<TierStats>(tiers.size());
+        for (var tier : tiers) {
+            stats.add(new TierStats(tier.name,
+                                    tier.hitCount.sum(),
+                                    tier.missCount.sum(),
+                                    tier.writeCount.sum(),
+                                    tier.promotionCount.sum(),
+                                    tier.errorCount.sum()));
+        }
+        return stats;
+    }
+
+    /**
+     * Copy a tile to the tiers above the one where it was found, the first tier immediately.
+     *
+     * @param stamp the stamp of the tile before it was read
+     */
+    private void promote(Tile tile, EncodedTile encodedTile, int foundTier, long stamp) {
+        if (foundTier == 0) {
+            return;
+        }
+        promote(tiers.get(0), tile, encodedTile, stamp);
+        for (int i = 1; i < foundTier; i++) {
+            var tier = tiers.get(i);
+            if (writer == null) {
+                promote(tier, tile, encodedTile, stamp);
+            } else {
+                try {
+                    writer.execute(() -> promote(tier, tile, encodedTile, stamp));
+                } catch (RejectedExecutionException e) {
+                    // closed while the tile was read, it is not promoted
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy a tile to a tier unless a newer copy was written meanwhile or is waiting to be written.
+     * If a newer copy is written while the tile is promoted, the promoted copy is removed again.
+     */
+    private void promote(Tier tier, Tile tile, EncodedTile encodedTile, long stamp) {
+        if (getStamp(tile) != stamp || pendingWrites.containsKey(tile)) {
+            return;
+        }
+        tier.write(tile, encodedTile, true);
+        if (getStamp(tile) != stamp) {
+            tier.remove(tile);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The tiered store is closed");
+        }
+    }
+
+    /**
+     * Run a task in the writer thread, it fails if the store was closed since the caller checked it.
+     */
+    private void executeInWriter(Runnable task) throws IOException {
+        try {
+            writer.execute(task);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("The tiered store is closed", e);
+        }
+    }
+
+    private long getStamp(Tile tile) {
+        return stamps.get(tile.hashCode() & (STAMP_STRIPES - 1));
+    }
+
+    private void incrementStamp(Tile tile) {
+        stamps.incrementAndGet(tile.hashCode() & (STAMP_STRIPES - 1));
+    }
+
+    /**
+     * Write a pending tile to the tiers below the first one, again if it was replaced meanwhile.
+     */
+    private void persist(Tile tile) {
+        EncodedTile encodedTile;
+        do {
+            encodedTile = pendingWrites.get(tile);
+            if (encodedTile == null) {
+                // removed meanwhile
+                return;
+            }
+            for (int i = 1; i < tiers.size(); i++) {
+                tiers.get(i).write(tile, encodedTile, false);
+            }
+        } while (!pendingWrites.remove(tile, encodedTile));
+    }
+
+    /**
+     * Run an operation on the tiers below the first one, in the writer thread so it is ordered with the writes.
+     */
+    private void runBelowFirstTier(TierOperation operation, String description) throws IOException {
+        if (writer == null) {
+            for (int i = 1; i < tiers.size(); i++) {
+                operation.run(tiers.get(i));
+            }
+            return;
+        }
+        executeInWriter(() -> {
+            for (int i = 1; i < tiers.size(); i++) {
+                var tier = tiers.get(i);
+                try {
+                    operation.run(tier);
+                } catch (IOException e) {
+                    tier.errorCount.increment();
+                    log.warn("Unable to {} in {}", description, tier.name, e);
+                }
+            }
+        });
+    }
+
+    @FunctionalInterface
+    private interface TierOperation {
+        void run(Tier tier) throws IOException;
+    }
+
+    private static final class Tier {
+        private final TileStore tileStore;
+        private final String    name;
+        /**
+         * The writes to a read only tier are not counted.
+         */
+        private final boolean   readOnly;
+        private final LongAdder hitCount;
+        private final LongAdder missCount;
+        private final LongAdder writeCount;
+        private final LongAdder promotionCount;
+        private final LongAdder errorCount;
+
+        private Tier(TileStore tileStore) {
+            this.tileStore = tileStore;
+            name           = tileStore.getClass().getSimpleName();
+            readOnly       = tileStore instanceof ReadOnlyTileStore;
+            hitCount       = new LongAdder();
+            missCount      = new LongAdder();
+            writeCount     = new LongAdder();
+            promotionCount = new LongAdder();
+            errorCount     = new LongAdder();
+        }
+
+        @Nullable
+        private EncodedTile read(Tile tile) {
+            try {
+                var encodedTile = tileStore.read(tile);
+                if (encodedTile == null) {
+                    missCount.increment();
+                } else {
+                    hitCount.increment();
+                }
+                return encodedTile;
+            } catch (IOException e) {
+                errorCount.increment();
+                log.warn("Unable to read {} from {}", tile, name, e);
+                return null;
+            }
+        }
+
+        private void write(Tile tile, EncodedTile encodedTile, boolean promotion) {
+            if (readOnly) {
+                return;
+            }
+            try {
+                tileStore.write(tile, encodedTile);
+                writeCount.increment();
+                if (promotion) {
+                    promotionCount.increment();
+                }
+            } catch (IOException e) {
+                errorCount.increment();
+                log.warn("Unable to write {} in {}", tile, name, e);
+            }
+        }
+
+        private void remove(Tile tile) {
+            if (readOnly) {
+                return;
+            }
+            try {
+                tileStore.remove(tile);
+            } catch (IOException e) {
+                errorCount.increment();
+                log.warn("Unable to remove {} from {}", tile, name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import jakarta.annotation.Nullable;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread safe LRU map keyed by tile coordinates.
+ * The entries are spread in segments, each one guarded by its own lock and evicting its least recently accessed
+ * entries when its share of the capacity is exceeded.
+ * The capacity is a weight (usually a number of bytes) computed for each value.
+ * Lookups are done with the tile coordinates and do not allocate.
+ * An optional removal listener is notified of the values leaving the map (evicted, replaced, removed, cleared or
+ * rejected because they are larger than a segment), it is called while the segment lock is held.
+ *
+ * @param <V> the type of the values
+ * @author Matthieu Casanova
+ */
+final class TileLruMap<V> {
+    private static final int MAX_SEGMENTS = 256;
+
+    private final Segment<V>[]             segments;
+    private final ToLongFunction<? super V> weigher;
+    private final long                      capacity;
+    private final LongAdder                 hitCount;
+    private final LongAdder                 missCount;
+    private final LongAdder                 evictionCount;
+
+    /**
+     * Create a map.
+     *
+     * @param capacity         the maximum total weight
+     * @param concurrencyLevel the number of segments, rounded down to a power of two
+     * @param weigher          the function computing the weight of a value
+     */
+    TileLruMap(long capacity, int concurrencyLevel, ToLongFunction<? super V> weigher) {
+        this(capacity, concurrencyLevel, weigher, null);
+    }
+
+    /**
+     * Create a map.
+     *
+     * @param capacity         the maximum total weight
+     * @param concurrencyLevel the number of segments, rounded down to a power of two
+     * @param weigher          the function computing the weight of a value
+     * @param removalListener  the listener notified of the values leaving the map
+     */
+    @SuppressWarnings("unchecked")
+    TileLruMap(long capacity,
+               int concurrencyLevel,
+               ToLongFunction<? super V> weigher,
+               @Nullable Consumer<? super V> removalListener) {
+        int segmentCount = Integer.highestOneBit(Math.min(Math.max(1, concurrencyLevel), MAX_SEGMENTS));
+        this.capacity = capacity;
+        this.weigher  = weigher;
+        segments      = (Segment<V>[]) new Segment<?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>(Math.max(1, capacity / segmentCount), removalListener);
+        }
+        hitCount      = new LongAdder();
+        missCount     = new LongAdder();
+        evictionCount = new LongAdder();
+    }
+
+    @Nullable
+    V get(int x, int y, int zoom) {
+        var value = getQuietly(x, y, zoom);
+        if (value == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Returns a value without counting a hit or a miss, it is still marked as the most recently accessed.
+     *
+     * @param x    the x coordinate of the tile
+     * @param y    the y coordinate of the tile
+     * @param zoom the zoom level
+     * @return the value or null if there is none
+     */
+    @Nullable
+    V getQuietly(int x, int y, int zoom) {
+        int hash    = hash(x, y, zoom);
+        var segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.get(hash, x, y, zoom);
+        }
+    }
+
+    /**
+     * Apply a function to a value while the segment lock is held, so the value cannot be removed meanwhile.
+     *
+     * @param x        the x coordinate of the tile
+     * @param y        the y coordinate of the tile
+     * @param zoom     the zoom level
+     * @param function the function
+     * @param <R>      the type of the result
+     * @return the result of the function or null if there is no value
+     */
+    @Nullable
+    <R> R getAndApply(int x, int y, int zoom, Function<? super V, ? extends R> function) {
+        return getAndApply(x, y, zoom, function, true);
+    }
+
+    /**
+     * Apply a function to a value while the segment lock is held, so the value cannot be removed meanwhile.
+     *
+     * @param x           the x coordinate of the tile
+     * @param y           the y coordinate of the tile
+     * @param zoom        the zoom level
+     * @param function    the function
+     * @param recordStats false to not count a hit or a miss
+     * @param <R>         the type of the result
+     * @return the result of the function or null if there is no value
+     */
+    @Nullable
+    <R> R getAndApply(int x, int y, int zoom, Function<? super V, ? extends R> function, boolean recordStats) {
+        int hash    = hash(x, y, zoom);
+        var segment = segmentFor(hash);
+        R   result  = null;
+        synchronized (segment) {
+            var value = segment.get(hash, x, y, zoom);
+            if (value != null) {
+                result = function.apply(value);
+            }
+        }
+        if (!recordStats) {
+            return result;
+        }
+        if (result == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        return result;
+    }
+
+    void put(int x, int y, int zoom, V value) {
+        int  hash    = hash(x, y, zoom);
+        var  segment = segmentFor(hash);
+        long weight  = weigher.applyAsLong(value);
+        int  evicted;
+        synchronized (segment) {
+            evicted = segment.put(hash, x, y, zoom, value, weight);
+        }
+        if (evicted != 0) {
+            evictionCount.add(evicted);
+        }
+    }
+
+    @Nullable
+    V remove(int x, int y, int zoom) {
+        int hash    = hash(x, y, zoom);
+        var segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.remove(hash, x, y, zoom);
+        }
+    }
+
+    void clear() {
+        for (var segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    CacheStats getStats() {
+        long size   = 0;
+        long weight = 0;
+        for (var segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+                weight += segment.weight;
+            }
+        }
+        return new CacheStats(hitCount.sum(), missCount.sum(), evictionCount.sum(), size, weight, capacity);
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return segments[(hash >>> 24) & (segments.length - 1)];
+    }
+
+    private static int hash(int x, int y, int zoom) {
+        int h = 31 * (31 * x + y) + zoom;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A hash table of nodes that are also linked from the least to the most recently accessed.
+     *
+     * @param <V> the type of the values
+     */
+    private static final class Segment<V> {
+        private static final int INITIAL_TABLE_SIZE = 16;
+
+        private final long                capacity;
+        @Nullable
+        private final Consumer<? super V> removalListener;
+        /**
+         * The sentinel of the access ordered list, head.after is the eldest entry and head.before the newest.
+         */
+        private final Node<V>             head;
+        private       Node<V>[]           table;
+        private       int                 size;
+        private       long                weight;
+
+        @SuppressWarnings("unchecked")
+        Segment(long capacity, @Nullable Consumer<? super V> removalListener) {
+            this.capacity        = capacity;
+            this.removalListener = removalListener;
+            head                 = new Node<>(0, 0, 0, 0);
+            head.before          = head;
+            head.after           = head;
+            table                = (Node<V>[]) new Node<?>[INITIAL_TABLE_SIZE];
+        }
+
+        @Nullable
+        V get(int hash, int x, int y, int zoom) {
+            var node = find(hash, x, y, zoom);
+            if (node == null) {
+                return null;
+            }
+            unlink(node);
+            linkLast(node);
+            return node.value;
+        }
+
+        /**
+         * Put a value and evict the eldest entries if the capacity is exceeded.
+         *
+         * @return the number of evicted entries
+         */
+        int put(int hash, int x, int y, int zoom, V value, long valueWeight) {
+            if (valueWeight > capacity) {
+                // it would evict everything else
+                remove(hash, x, y, zoom);
+                notifyRemoval(value);
+                return 0;
+            }
+            var node = find(hash, x, y, zoom);
+            if (node == null) {
+                node = new Node<>(hash, x, y, zoom);
+                int index = hash & (table.length - 1);
+                node.next    = table[index];
+                table[index] = node;
+                size++;
+                if (size > table.length * 3 / 4) {
+                    resize();
+                }
+            } else {
+                weight -= node.weight;
+                unlink(node);
+                if (node.value != value) {
+                    notifyRemoval(node.value);
+                }
+            }
+            node.value  = value;
+            node.weight = valueWeight;
+            weight += valueWeight;
+            linkLast(node);
+            int evicted = 0;
+            while (weight > capacity) {
+                var eldest = head.after;
+                removeNode(eldest);
+                notifyRemoval(eldest.value);
+                evicted++;
+            }
+            return evicted;
+        }
+
+        @Nullable
+        V remove(int hash, int x, int y, int zoom) {
+            var node = find(hash, x, y, zoom);
+            if (node == null) {
+                return null;
+            }
+            removeNode(node);
+            notifyRemoval(node.value);
+            return node.value;
+        }
+
+        @SuppressWarnings("unchecked")
+        void clear() {
+            if (removalListener != null) {
+                for (var node = head.after; node != head; node = node.after) {
+                    removalListener.accept(node.value);
+                }
+            }
+            table       = (Node<V>[]) new Node<?>[INITIAL_TABLE_SIZE];
+            head.before = head;
+            head.after  = head;
+            size        = 0;
+            weight      = 0;
+        }
+
+        @Nullable
+        private Node<V> find(int hash, int x, int y, int zoom) {
+            var node = table[hash & (table.length - 1)];
+            while (node != null) {
+                if (node.hash == hash && node.x == x && node.y == y && node.zoom == zoom) {
+                    return node;
+                }
+                node = node.next;
+            }
+            return null;
+        }
+
+        private void removeNode(Node<V> node) {
+            int index = node.hash & (table.length - 1);
+            var prev  = table[index];
+            if (prev == node) {
+                table[index] = node.next;
+            } else {
+                while (prev.next != node) {
+                    prev = prev.next;
+                }
+                prev.next = node.next;
+            }
+            unlink(node);
+            size--;
+            weight -= node.weight;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void resize() {
+            var oldTable = table;
+            table = (Node<V>[]) new Node<?>[oldTable.length << 1];
+            for (var node : oldTable) {
+                while (node != null) {
+                    var next  = node.next;
+                    int index = node.hash & (table.length - 1);
+                    node.next    = table[index];
+                    table[index] = node;
+                    node         = next;
+                }
+            }
+        }
+
+        private void notifyRemoval(V value) {
+            if (removalListener != null) {
+                removalListener.accept(value);
+            }
+        }
+
+        private void unlink(Node<V> node) {
+            node.before.after = node.after;
+            node.after.before = node.before;
+        }
+
+        private void linkLast(Node<V> node) {
+            node.before       = head.before;
+            node.after        = head;
+            head.before.after = node;
+            head.before       = node;
+        }
+    }
+
+    private static final class Node<V> {
+        private final int     hash;
+        private final int     x;
+        private final int     y;
+        private final int     zoom;
+        private       V       value;
+        private       long    weight;
+        private       Node<V> next;
+        private       Node<V> before;
+        private       Node<V> after;
+
+        Node(int hash, int x, int y, int zoom) {
+            this.hash = hash;
+            this.x    = x;
+            this.y    = y;
+            this.zoom = zoom;
+        }
+    }
+}
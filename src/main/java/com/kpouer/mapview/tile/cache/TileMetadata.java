@@ -0,0 +1,118 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import jakarta.annotation.Nullable;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.function.Function;
+
+/**
+ * The HTTP validators and the expiration date of a tile, used to revalidate it with a conditional request once it
+ * expired.
+ *
+ * @author Matthieu Casanova
+ */
+@Getter
+@ToString
+public class TileMetadata {
+    /**
+     * The value of the ETag header.
+     */
+    @Nullable
+    private final String etag;
+    /**
+     * The value of the Last-Modified header.
+     */
+    @Nullable
+    private final String lastModified;
+    /**
+     * The expiration time in ms since epoch, 0 if the tile never expires.
+     */
+    private final long   expires;
+
+    public TileMetadata(@Nullable String etag, @Nullable String lastModified, long expires) {
+        this.etag         = etag;
+        this.lastModified = lastModified;
+        this.expires      = expires;
+    }
+
+    /**
+     * Create the metadata from the headers of an HTTP response.
+     * The expiration comes from the max-age directive of Cache-Control, or from the Expires header.
+     *
+     * @param headers a function returning the value of a header, or null if it is missing
+     * @param now     the time of the response
+     * @return the metadata
+     */
+    public static TileMetadata fromHeaders(Function<String, String> headers, long now) {
+        return new TileMetadata(headers.apply("ETag"), headers.apply("Last-Modified"), getExpires(headers, now));
+    }
+
+    private static long getExpires(Function<String, String> headers, long now) {
+        var cacheControl = headers.apply("Cache-Control");
+        if (cacheControl != null) {
+            for (var directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring("max-age=".length())) * 1000;
+                    } catch (NumberFormatException e) {
+                        // ignore it
+                    }
+                }
+            }
+        }
+        var expires = headers.apply("Expires");
+        if (expires != null) {
+            try {
+                return ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // an invalid date means already expired
+                return now;
+            }
+        }
+        return 0;
+    }
+
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    public boolean isExpired(long now) {
+        return expires != 0 && now >= expires;
+    }
+
+    /**
+     * Returns the metadata updated by a not modified response, the validators that the response does not contain
+     * are kept.
+     *
+     * @param newer the metadata of the not modified response
+     * @return the updated metadata
+     */
+    public TileMetadata update(TileMetadata newer) {
+        return new TileMetadata(newer.etag == null ? etag : newer.etag,
+                                newer.lastModified == null ? lastModified : newer.lastModified,
+                                newer.expires);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import jakarta.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A persistent storage of encoded tiles, used by {@link ImageCacheImpl} as its disk tier.
+ * Implementations must be thread safe.
+ *
+ * @author Matthieu Casanova
+ */
+public interface TileStore extends Closeable {
+    /**
+     * Read a tile.
+     *
+     * @param tile the tile
+     * @return the encoded tile or null if it is not stored
+     * @throws IOException if the tile cannot be read
+     */
+    @Nullable
+    EncodedTile read(Tile tile) throws IOException;
+
+    void write(Tile tile, EncodedTile encodedTile) throws IOException;
+
+    /**
+     * Read the metadata of a tile.
+     * The default implementation reads the tile.
+     *
+     * @param tile the tile
+     * @return the metadata or null if the tile is not stored or has no metadata
+     * @throws IOException if the tile cannot be read
+     */
+    @Nullable
+    default TileMetadata readMetadata(Tile tile) throws IOException {
+        var encodedTile = read(tile);
+        return encodedTile == null ? null : encodedTile.getMetadata();
+    }
+
+    /**
+     * Replace the metadata of a stored tile, for example after a successful revalidation.
+     * The default implementation writes the tile again.
+     *
+     * @param tile     the tile
+     * @param metadata the new metadata
+     * @throws IOException if the tile cannot be written
+     */
+    default void updateMetadata(Tile tile, TileMetadata metadata) throws IOException {
+        var encodedTile = read(tile);
+        if (encodedTile != null) {
+            write(tile, encodedTile.withMetadata(metadata));
+        }
+    }
+
+    void remove(Tile tile) throws IOException;
+
+    /**
+     * Release the resources of the store, it must not be used anymore.
+     * The default implementation does nothing.
+     *
+     * @throws IOException if the store cannot be closed
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -1,5 +1,6 @@
 module com.kpouer.mapview {
     requires java.desktop;
+    requires java.net.http;
     requires org.slf4j;
     requires com.kpouer.wkt;
     requires static lombok;
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview;
+
+import com.kpouer.mapview.marker.Circle;
+import com.kpouer.mapview.marker.Marker;
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Matthieu Casanova
+ */
+class MarkerIndexTest {
+    @Test
+    void queryArea() {
+        var index = new MarkerIndex();
+        var a     = marker();
+        var b     = marker();
+        var c     = marker();
+        index.add(a, new Rectangle(10, 10, 5, 5));
+        index.add(b, new Rectangle(1000, 1000, 5, 5));
+        index.add(c, new Rectangle(-300, -300, 5, 5));
+        assertEquals(List.of(a), index.query(0, 0, 100, 100));
+        assertEquals(List.of(b), index.query(900, 900, 200, 200));
+        assertEquals(List.of(c), index.query(-400, -400, 200, 200));
+        assertEquals(List.of(a, b, c), index.query(-1000, -1000, 3000, 3000));
+        assertTrue(index.query(500, 500, 10, 10).isEmpty());
+    }
+
+    @Test
+    void queryPoint() {
+        var index = new MarkerIndex();
+        var a     = marker();
+        index.add(a, new Rectangle(250, 250, 10, 10));
+        assertEquals(List.of(a), index.query(250, 250));
+        assertEquals(List.of(a), index.query(259, 259));
+        assertTrue(index.query(260, 255).isEmpty());
+        assertTrue(index.query(249, 255).isEmpty());
+    }
+
+    @Test
+    void markerAcrossCellsIsFoundOnce() {
+        var index = new MarkerIndex();
+        var a     = marker();
+        index.add(a, new Rectangle(200, 200, 400, 400));
+        assertEquals(List.of(a), index.query(0, 0, 1000, 1000));
+        assertEquals(List.of(a), index.query(550, 550, 10, 10));
+    }
+
+    @Test
+    void markerAddedTwice() {
+        var index = new MarkerIndex();
+        var a     = marker();
+        var b     = marker();
+        assertTrue(index.add(a, new Rectangle(0, 0, 5, 5)));
+        index.add(b, new Rectangle(10, 10, 5, 5));
+        assertFalse(index.add(a, new Rectangle(600, 600, 5, 5)));
+        // moved after the others, its previous cells are released
+        assertEquals(List.of(b, a), index.query(0, 0, 1000, 1000));
+        assertEquals(List.of(b), index.query(0, 0, 20, 20));
+        index.remove(a);
+        assertEquals(List.of(b), index.query(0, 0, 1000, 1000));
+        assertTrue(index.query(600, 600).isEmpty());
+    }
+
+    @Test
+    void paintOrderIsKept() {
+        var index = new MarkerIndex();
+        var a     = marker();
+        var b     = marker();
+        var c     = marker();
+        index.add(a, new Rectangle(600, 600, 5, 5));
+        index.add(b, new Rectangle(0, 0, 5, 5));
+        index.add(c, new Rectangle(300, 300, 5, 5));
+        assertEquals(List.of(a, b, c), index.query(0, 0, 1000, 1000));
+        index.update(a, new Rectangle(0, 0, 5, 5));
+        assertEquals(List.of(a, b, c), index.query(0, 0, 1000, 1000));
+    }
+
+    @Test
+    void unindexedMarkers() {
+        var index = new MarkerIndex();
+        var large = marker();
+        var none  = marker();
+        var small = marker();
+        index.add(large, new Rectangle(0, 0, 100_000, 100_000));
+        index.add(none, null);
+        index.add(small, new Rectangle(10, 10, 5, 5));
+        assertEquals(List.of(large, none, small), index.query(10, 10));
+        assertEquals(List.of(large, none), index.query(50_000, 50_000));
+        assertEquals(List.of(none), index.query(-50_000, -50_000));
+        // from the grid to the large markers and back
+        index.update(small, new Rectangle(0, 0, 10_000, 10_000));
+        assertEquals(List.of(large, none, small), index.query(5_000, 5_000));
+        index.update(large, new Rectangle(0, 0, 5, 5));
+        assertEquals(List.of(none, small), index.query(5_000, 5_000));
+        assertEquals(List.of(large, none, small), index.query(0, 0));
+    }
+
+    @Test
+    void updateAndRemove() {
+        var index = new MarkerIndex();
+        var a     = marker();
+        var b     = marker();
+        index.add(a, new Rectangle(10, 10, 5, 5));
+        index.add(b, new Rectangle(10, 10, 5, 5));
+        index.update(a, new Rectangle(5000, 5000, 5, 5));
+        assertEquals(List.of(b), index.query(0, 0, 100, 100));
+        assertEquals(List.of(a), index.query(4900, 4900, 200, 200));
+        index.remove(a);
+        assertTrue(index.query(4900, 4900, 200, 200).isEmpty());
+        // an unknown marker is ignored
+        index.update(a, new Rectangle(10, 10, 5, 5));
+        index.remove(a);
+        assertEquals(List.of(b), index.query(0, 0, 100, 100));
+        index.clear();
+        assertTrue(index.query(0, 0, 100, 100).isEmpty());
+    }
+
+    private static Marker marker() {
+        return new Circle(0, 0, 5, Color.RED);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.marker;
+
+import com.kpouer.mapview.tile.TilesTools;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.kpouer.mapview.tile.TilesTools.WORLD_BITS;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Matthieu Casanova
+ */
+class ClusterIndexTest {
+    private static final int WORLD_MAX = (1 << WORLD_BITS) - 1;
+
+    @Test
+    void everyPointIsInOneCluster() {
+        var random     = new Random(42);
+        int length     = 10_000;
+        var latitudes  = new double[length];
+        var longitudes = new double[length];
+        for (int i = 0; i < length; i++) {
+            latitudes[i]  = random.nextDouble() * 170 - 85;
+            longitudes[i] = random.nextDouble() * 360 - 180;
+        }
+        var index = new ClusterIndex(latitudes, longitudes, 0, length, 0, 18, 256, 64);
+        for (int zoom = 0; zoom <= 18; zoom++) {
+            assertEquals(length, countAll(index, zoom), "zoom " + zoom);
+            assertTrue(index.getClusterCount(zoom) <= index.getClusterCount(Math.min(zoom + 1, 18)));
+        }
+        // 4 x 4 cells of 64 pixels at zoom 0
+        assertEquals(16, index.getClusterCount(0));
+    }
+
+    @Test
+    void nearPointsAreClustered() {
+        var latitudes  = new double[]{48.856, 48.857, 48.858, 40.7128};
+        var longitudes = new double[]{2.352, 2.353, 2.354, -74.0060};
+        var index      = new ClusterIndex(latitudes, longitudes, 0, 4, 0, 18, 256, 64);
+        var clusters   = query(index, 10, 0, 0, WORLD_MAX, WORLD_MAX);
+        assertEquals(2, clusters.size());
+        assertTrue(clusters.stream().anyMatch(cluster -> cluster[2] == 3));
+        assertTrue(clusters.stream().anyMatch(cluster -> cluster[2] == 1));
+        assertEquals(4, query(index, 18, 0, 0, WORLD_MAX, WORLD_MAX).size());
+    }
+
+    @Test
+    void queryArea() {
+        var latitudes  = new double[]{48.8566, 40.7128};
+        var longitudes = new double[]{2.3522, -74.0060};
+        var index      = new ClusterIndex(latitudes, longitudes, 0, 2, 0, 18, 256, 64);
+        int parisX     = TilesTools.longitudeToWorld(2.3522);
+        int parisY     = TilesTools.latitudeToWorld(48.8566);
+        int margin     = 1 << 16;
+        for (int zoom = 5; zoom <= 18; zoom++) {
+            var clusters = query(index, zoom, parisX - margin, parisY - margin, parisX + margin, parisY + margin);
+            assertEquals(1, clusters.size(), "zoom " + zoom);
+            assertEquals(1, clusters.get(0)[2]);
+        }
+        assertEquals(18, index.getMaxZoom());
+        assertEquals(64, index.getCellSize());
+    }
+
+    @Test
+    void polesAndAntimeridian() {
+        var latitudes  = new double[]{90, -90, 89.9, -89.9, 0, 0, 10, 10.0001};
+        var longitudes = new double[]{0, 0, 0, 0, 180, -180, 20, 20.0001};
+        var index      = new ClusterIndex(latitudes, longitudes, 0, latitudes.length, 0, 18, 256, 64);
+        for (int zoom = 0; zoom <= 18; zoom++) {
+            assertEquals(latitudes.length, countAll(index, zoom), "zoom " + zoom);
+        }
+        // the two close points are found by a cell query, which relies on the Morton order
+        int x        = TilesTools.longitudeToWorld(20);
+        int y        = TilesTools.latitudeToWorld(10);
+        int margin   = 1 << 10;
+        var clusters = query(index, 12, x - margin, y - margin, x + margin, y + margin);
+        assertEquals(1, clusters.size());
+        assertEquals(2, clusters.get(0)[2]);
+        // the north pole is clipped to the top of the world
+        clusters = query(index, 18, 0, 0, WORLD_MAX, 1 << 10);
+        assertEquals(2, clusters.stream().mapToInt(cluster -> cluster[2]).sum());
+    }
+
+    @Test
+    void cellLargerThanTheWorld() {
+        var random     = new Random(1);
+        int length     = 1000;
+        var latitudes  = new double[length];
+        var longitudes = new double[length];
+        for (int i = 0; i < length; i++) {
+            latitudes[i]  = random.nextDouble() * 170 - 85;
+            longitudes[i] = random.nextDouble() * 360 - 180;
+        }
+        // cells of 2^20 pixels, their Morton shift would exceed 64 bits
+        var index = new ClusterIndex(latitudes, longitudes, 0, length, 0, 2, 256, 1 << 20);
+        for (int zoom = 0; zoom <= 2; zoom++) {
+            assertEquals(1, index.getClusterCount(zoom), "zoom " + zoom);
+            var clusters = query(index, zoom, 0, 0, WORLD_MAX, WORLD_MAX);
+            assertEquals(1, clusters.size());
+            assertEquals(length, clusters.get(0)[2]);
+            // a small area is looked up by cell
+            int x = clusters.get(0)[0];
+            int y = clusters.get(0)[1];
+            assertEquals(1, query(index, zoom, x - 1, y - 1, x + 1, y + 1).size());
+        }
+    }
+
+    @Test
+    void invalidArguments() {
+        var empty = new double[0];
+        assertThrows(IllegalArgumentException.class, () -> new ClusterIndex(empty, empty, 0, 0, 5, 4, 256, 64));
+        assertThrows(IllegalArgumentException.class, () -> new ClusterIndex(empty, empty, 0, 0, 0, 4, 250, 64));
+        assertThrows(IllegalArgumentException.class, () -> new ClusterIndex(empty, empty, 0, 0, 0, 4, 256, 0));
+        assertThrows(IllegalArgumentException.class, () -> new ClusterIndex(empty, empty, 0, 0, 0, 4, 256, Integer.MAX_VALUE));
+        var index = new ClusterIndex(empty, empty, 0, 0, 0, 4, 256, 50);
+        assertEquals(64, index.getCellSize());
+        assertEquals(0, countAll(index, 2));
+    }
+
+    private static int countAll(ClusterIndex index, int zoom) {
+        return query(index, zoom, 0, 0, WORLD_MAX, WORLD_MAX).stream().mapToInt(cluster -> cluster[2]).sum();
+    }
+
+    private static List<int[]> query(ClusterIndex index, int zoom, int minX, int minY, int maxX, int maxY) {
+        var clusters = new ArrayList<int[]>();
+        index.query(zoom, minX, minY, maxX, maxY, (x, y, count) -> clusters.add(new int[]{x, y, count}));
+        return clusters;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.marker;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.geom.Line2D;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Matthieu Casanova
+ */
+class PolygonMarkerTest {
+    @Test
+    void endsAreAlwaysKept() {
+        var importance = PolygonMarker.computeImportance(new int[]{0, 10}, new int[]{0, 10});
+        assertEquals(Float.POSITIVE_INFINITY, importance[0]);
+        assertEquals(Float.POSITIVE_INFINITY, importance[1]);
+    }
+
+    @Test
+    void collinearPointsAreRemoved() {
+        var importance = PolygonMarker.computeImportance(new int[]{0, 10, 20, 30, 40}, new int[]{0, 0, 0, 0, 0});
+        assertEquals(0, importance[1]);
+        assertEquals(0, importance[2]);
+        assertEquals(0, importance[3]);
+    }
+
+    @Test
+    void importanceIsTheDistanceToTheSplitSegment() {
+        // a triangle wave, the highest peak splits first
+        var xs         = new int[]{0, 10, 20, 30, 40};
+        var ys         = new int[]{0, 30, 0, 10, 0};
+        var importance = PolygonMarker.computeImportance(xs, ys);
+        assertEquals(30, importance[1], 1e-3);
+        // split from (10, 30) to (40, 0)
+        assertEquals(Line2D.ptSegDist(10, 30, 40, 0, 20, 0), importance[2], 1e-3);
+        // split from (20, 0) to (40, 0)
+        assertEquals(10, importance[3], 1e-3);
+    }
+
+    @Test
+    void aPointIsNotMoreImportantThanItsParent() {
+        // (500, 10) splits first, (250, -9) is then about 14 away from its segment but is only kept with its parent
+        var xs         = new int[]{0, 250, 500, 1000};
+        var ys         = new int[]{0, -9, 10, 0};
+        var importance = PolygonMarker.computeImportance(xs, ys);
+        assertEquals(10, importance[2], 1e-3);
+        assertEquals(importance[2], importance[1]);
+    }
+
+    @Test
+    void sameAsRecursiveDouglasPeucker() {
+        var random = new Random(7);
+        for (int run = 0; run < 50; run++) {
+            int n  = 2 + random.nextInt(200);
+            var xs = new int[n];
+            var ys = new int[n];
+            for (int i = 0; i < n; i++) {
+                xs[i] = random.nextInt(10_000);
+                ys[i] = random.nextInt(10_000);
+            }
+            var importance = PolygonMarker.computeImportance(xs, ys);
+            for (double tolerance : new double[]{0, 1, 10, 100, 500, 1000, 3000}) {
+                var kept = new boolean[n];
+                kept[0]     = true;
+                kept[n - 1] = true;
+                douglasPeucker(xs, ys, 0, n - 1, tolerance, kept);
+                for (int i = 0; i < n; i++) {
+                    assertEquals(kept[i], importance[i] > tolerance, "point " + i + " tolerance " + tolerance);
+                }
+            }
+        }
+    }
+
+    private static void douglasPeucker(int[] xs, int[] ys, int start, int end, double tolerance, boolean[] kept) {
+        int   farthest = -1;
+        float distance = -1;
+        for (int i = start + 1; i < end; i++) {
+            float d = (float) Line2D.ptSegDist(xs[start], ys[start], xs[end], ys[end], xs[i], ys[i]);
+            if (d > distance) {
+                distance = d;
+                farthest = i;
+            }
+        }
+        if (farthest != -1 && distance > tolerance) {
+            kept[farthest] = true;
+            douglasPeucker(xs, ys, start, farthest, tolerance, kept);
+            douglasPeucker(xs, ys, farthest, end, tolerance, kept);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+import com.kpouer.mapview.tile.cache.EncodedTile;
+import com.kpouer.mapview.tile.cache.ImageCache;
+import com.kpouer.mapview.tile.cache.TileMetadata;
+import jakarta.annotation.Nullable;
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Matthieu Casanova
+ */
+class DefaultTileServerTest {
+    private static final Tile TILE = new Tile(1, 2, 3);
+
+    @Test
+    void expiredTileIsRevalidated() throws Exception {
+        var cache   = new MemoryImageCache();
+        var fetcher = new RecordingFetcher();
+        cache.images.put(TILE, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+        cache.metadata.put(TILE, new TileMetadata("\"etag\"", null, 1));
+        var server = new DefaultTileServer(256, 0, 18, fetcher, cache, "http://tiles/${z}/${x}/${y}.png");
+        assertNull(server.getTile(TILE.getX(), TILE.getY(), TILE.getZoom()));
+
+        var request = fetcher.take();
+        assertEquals("http://tiles/3/1/2.png", request.url);
+        assertNotNull(request.validators);
+        assertEquals("\"etag\"", request.validators.getEtag());
+    }
+
+    @Test
+    void expiredTileWithoutValidatorsIsDownloadedAgain() throws Exception {
+        var cache   = new MemoryImageCache();
+        var fetcher = new RecordingFetcher();
+        cache.images.put(TILE, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+        cache.metadata.put(TILE, new TileMetadata(null, null, 1));
+        var server = new DefaultTileServer(256, 0, 18, fetcher, cache, "http://tiles/${z}/${x}/${y}.png");
+        server.getTile(TILE.getX(), TILE.getY(), TILE.getZoom());
+
+        var request = fetcher.take();
+        assertNull(request.validators);
+        request.response.complete(new TileResponse(200, encodedTile(), new TileMetadata(null, null, 0)));
+        assertEquals(TILE, cache.stored.poll(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void prefetchedTileIsDownloadedOnceAfterAZoom() throws Exception {
+        var cache    = new MemoryImageCache();
+        var fetcher  = new RecordingFetcher(1);
+        var server   = new DefaultTileServer(256, 0, 18, fetcher, cache, "http://tiles/${z}/${x}/${y}.png");
+        var visible  = new Tile(0, 0, 3);
+        var prefetch = new Tile(0, 0, 4);
+        // the only download slot is used, so the prefetched tile waits in the scheduler
+        server.getTile(visible.getX(), visible.getY(), visible.getZoom());
+        var first = fetcher.take();
+        server.prefetch(List.of(prefetch));
+        awaitDiskLoader(server, cache, new Tile(1, 0, 3));
+
+        server.cancelPendingZoom(3);
+        server.getTile(prefetch.getX(), prefetch.getY(), prefetch.getZoom());
+        awaitDiskLoader(server, cache, new Tile(2, 0, 3));
+
+        first.response.complete(new TileResponse(404, null, new TileMetadata(null, null, 0)));
+        int count = 0;
+        Request request;
+        while ((request = fetcher.requests.poll(1, TimeUnit.SECONDS)) != null) {
+            if (request.url.equals("http://tiles/4/0/0.png")) {
+                count++;
+            }
+            request.response.complete(new TileResponse(404, null, new TileMetadata(null, null, 0)));
+        }
+        assertEquals(1, count);
+    }
+
+    @Test
+    void malformedUrlFailsTheTileOnly() throws Exception {
+        var server = new DefaultTileServer(256, 0, 18, new HttpClientTileFetcher(1, 1), new MemoryImageCache(),
+                                           "http://tiles {s}/${z}/${x}/${y}.png");
+        assertDispatchSurvives(server);
+    }
+
+    @Test
+    void fetcherExceptionFailsTheTileOnly() throws Exception {
+        var fetcher = new RecordingFetcher(1) {
+            @Override
+            public CompletableFuture<TileResponse> fetch(String url, @Nullable TileMetadata validators) {
+                throw new IllegalArgumentException("Malformed url " + url);
+            }
+        };
+        var server = new DefaultTileServer(256, 0, 18, fetcher, new MemoryImageCache(), "http://tiles/${z}/${x}/${y}.png");
+        assertDispatchSurvives(server);
+    }
+
+    /**
+     * Request tiles one after the other and check that each one fails without stopping the downloads, with a single
+     * download slot that must be released each time.
+     */
+    private static void assertDispatchSurvives(DefaultTileServer server) throws InterruptedException {
+        var failures = new LinkedBlockingQueue<Tile>();
+        server.addTileListener(new TileListener() {
+            @Override
+            public void tileLoaded(Tile tile) {
+            }
+
+            @Override
+            public void tileFailed(Tile tile, TileFailure failure) {
+                failures.add(tile);
+            }
+        });
+        for (int x = 0; x < 3; x++) {
+            server.getTile(x, 0, 3);
+            assertEquals(new Tile(x, 0, 3), failures.poll(10, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Request a tile and wait until it is read from the cache, so the tiles requested before are handled.
+     */
+    private static void awaitDiskLoader(DefaultTileServer server, MemoryImageCache cache, Tile tile) throws InterruptedException {
+        server.getTile(tile.getX(), tile.getY(), tile.getZoom());
+        Tile read;
+        do {
+            read = cache.reads.poll(10, TimeUnit.SECONDS);
+            assertNotNull(read, "Timeout");
+        } while (!read.equals(tile));
+    }
+
+    private static EncodedTile encodedTile() {
+        return new EncodedTile(new byte[]{1, 2, 3}, "image/png");
+    }
+
+    private static final class Request {
+        private final String                          url;
+        @Nullable
+        private final TileMetadata                    validators;
+        private final CompletableFuture<TileResponse> response;
+
+        private Request(String url, @Nullable TileMetadata validators) {
+            this.url        = url;
+            this.validators = validators;
+            response        = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * A fetcher whose requests are answered by the test.
+     */
+    private static class RecordingFetcher implements TileFetcher {
+        private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+        private final int                    maxConcurrency;
+
+        RecordingFetcher() {
+            this(4);
+        }
+
+        RecordingFetcher(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        @Override
+        public CompletableFuture<TileResponse> fetch(String url, @Nullable TileMetadata validators) {
+            var request = new Request(url, validators);
+            requests.add(request);
+            return request.response;
+        }
+
+        @Override
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        Request take() throws InterruptedException {
+            var request = requests.poll(10, TimeUnit.SECONDS);
+            assertNotNull(request, "Timeout");
+            return request;
+        }
+    }
+
+    /**
+     * An image cache whose tiles are only read from its "disk", so they are loaded by the disk loader.
+     */
+    private static final class MemoryImageCache implements ImageCache {
+        private final Map<Tile, Image>        images   = new ConcurrentHashMap<>();
+        private final Map<Tile, TileMetadata> metadata = new ConcurrentHashMap<>();
+        private final BlockingQueue<Tile>     stored   = new LinkedBlockingQueue<>();
+        private final BlockingQueue<Tile>     reads    = new LinkedBlockingQueue<>();
+
+        @Nullable
+        @Override
+        public Image getTile(Tile tile) {
+            reads.add(tile);
+            return images.get(tile);
+        }
+
+        @Override
+        public void setTile(Tile tile, Image image) {
+            images.put(tile, image);
+            stored.add(tile);
+        }
+
+        @Override
+        public void setTile(Tile tile, EncodedTile encodedTile) {
+            setTile(tile, new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB));
+        }
+
+        @Nullable
+        @Override
+        public TileMetadata getMetadata(Tile tile) {
+            return metadata.get(tile);
+        }
+    }
+}
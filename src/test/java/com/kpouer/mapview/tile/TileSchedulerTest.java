@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Matthieu Casanova
+ */
+class TileSchedulerTest {
+    @Test
+    void closestToTheCenterFirst() throws InterruptedException {
+        var scheduler = new TileScheduler(10);
+        scheduler.setVisibleArea(5, 0, 0, 4, 4);
+        scheduler.submit(new Tile(0, 0, 5));
+        scheduler.submit(new Tile(4, 3, 5));
+        scheduler.submit(new Tile(2, 2, 5));
+        scheduler.submit(new Tile(1, 2, 5));
+        assertEquals(new Tile(2, 2, 5), scheduler.take());
+        assertEquals(new Tile(1, 2, 5), scheduler.take());
+        assertEquals(new Tile(4, 3, 5), scheduler.take());
+        assertEquals(new Tile(0, 0, 5), scheduler.take());
+    }
+
+    @Test
+    void dropsTilesOutOfTheVisibleArea() throws InterruptedException {
+        var scheduler = new TileScheduler(10);
+        scheduler.setVisibleArea(5, 0, 0, 4, 4);
+        scheduler.submit(new Tile(0, 0, 5));
+        scheduler.submit(new Tile(4, 4, 5));
+        var dropped = scheduler.setVisibleArea(5, 4, 4, 8, 8);
+        assertEquals(List.of(new Tile(0, 0, 5)), dropped);
+        assertEquals(new Tile(4, 4, 5), scheduler.take());
+    }
+
+    @Test
+    void keepsAMargin() {
+        var scheduler = new TileScheduler(10);
+        scheduler.setVisibleArea(5, 2, 2, 4, 4);
+        scheduler.submit(new Tile(1, 5, 5));
+        assertTrue(scheduler.setVisibleArea(5, 2, 2, 4, 4).isEmpty());
+    }
+
+    @Test
+    void rejectsTilesOutOfTheVisibleArea() {
+        var scheduler = new TileScheduler(10);
+        assertTrue(scheduler.submit(new Tile(100, 100, 5)));
+        scheduler.setVisibleArea(5, 0, 0, 4, 4);
+        assertFalse(scheduler.submit(new Tile(10, 10, 5)));
+        assertFalse(scheduler.submit(new Tile(2, 2, 6)));
+        assertTrue(scheduler.submit(new Tile(2, 2, 5)));
+    }
+
+    @Test
+    void cancelOtherZooms() throws InterruptedException {
+        var scheduler = new TileScheduler(10);
+        scheduler.submit(new Tile(1, 1, 5));
+        scheduler.submit(new Tile(1, 1, 6));
+        assertEquals(List.of(new Tile(1, 1, 5)), scheduler.cancelOtherZooms(6));
+        assertEquals(new Tile(1, 1, 6), scheduler.take());
+    }
+
+    @Test
+    void prefetchAndRevalidationAfterVisibleTiles() throws InterruptedException {
+        var scheduler = new TileScheduler(10);
+        scheduler.setVisibleArea(5, 0, 0, 4, 4);
+        scheduler.submitRevalidation(new Tile(1, 1, 5));
+        scheduler.submitPrefetch(new Tile(6, 6, 5));
+        scheduler.submitPrefetch(new Tile(7, 7, 5));
+        scheduler.submit(new Tile(2, 2, 5));
+        assertEquals(new Tile(2, 2, 5), scheduler.take());
+        assertEquals(new Tile(6, 6, 5), scheduler.take());
+        assertEquals(new Tile(7, 7, 5), scheduler.take());
+        assertEquals(new Tile(1, 1, 5), scheduler.take());
+    }
+
+    @Test
+    void promoteAndRetainPrefetch() throws InterruptedException {
+        var scheduler = new TileScheduler(10);
+        scheduler.submitPrefetch(new Tile(6, 6, 5));
+        scheduler.submitPrefetch(new Tile(7, 7, 5));
+        scheduler.submitPrefetch(new Tile(8, 8, 5));
+        assertEquals(List.of(new Tile(6, 6, 5)), scheduler.retainPrefetch(Set.of(new Tile(7, 7, 5), new Tile(8, 8, 5))));
+        scheduler.promote(new Tile(8, 8, 5));
+        // the promoted tile is downloaded before the remaining prefetched one
+        assertEquals(new Tile(8, 8, 5), scheduler.take());
+        assertEquals(new Tile(7, 7, 5), scheduler.take());
+        assertTrue(scheduler.retainPrefetch(Set.of()).isEmpty());
+    }
+
+    @Test
+    void limit() throws Exception {
+        var scheduler = new TileScheduler(1);
+        scheduler.submit(new Tile(1, 1, 5));
+        scheduler.submit(new Tile(2, 2, 5));
+        scheduler.take();
+        assertEquals(1, scheduler.getInFlight());
+        var executor = Executors.newSingleThreadExecutor();
+        try {
+            var next = executor.submit(scheduler::take);
+            assertThrows(TimeoutException.class, () -> next.get(100, TimeUnit.MILLISECONDS));
+            scheduler.setLimit(2);
+            assertNotNull(next.get(5, TimeUnit.SECONDS));
+            assertEquals(2, scheduler.getInFlight());
+            scheduler.done();
+            scheduler.done();
+            assertEquals(0, scheduler.getInFlight());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Matthieu Casanova
+ */
+class DiskTileStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void onlyStaleTemporaryFilesAreDeleted() throws IOException {
+        var stale = Files.createFile(directory.resolve("3_1_2-1.tmp"));
+        Files.setLastModifiedTime(stale, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+        // a write in progress, of another store sharing the directory
+        var recent = Files.createFile(directory.resolve("3_1_2-2.tmp"));
+        var store  = new DiskTileStore(directory);
+        var tile   = new Tile(1, 2, 3);
+        store.write(tile, new EncodedTile(ByteBuffer.wrap(new byte[]{1, 2, 3}), "image/png"));
+        // waits for the startup scan
+        store.close();
+        assertFalse(Files.exists(stale));
+        assertTrue(Files.exists(recent));
+
+        var reopened = new DiskTileStore(directory);
+        assertArrayEquals(new byte[]{1, 2, 3}, reopened.read(tile).toByteArray());
+        reopened.close();
+        assertThrows(IOException.class, () -> reopened.read(tile));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Matthieu Casanova
+ */
+class OffHeapMemoryCacheTest {
+    private static final Tile TILE = new Tile(1, 2, 3);
+
+    @Test
+    void indexedTileKeepsItsBytesAndPalette() {
+        // a heap tier too small to hold a tile, so it is read from the off heap tier
+        var cache = new OffHeapMemoryCache(1024 * 1024, 1);
+        var image = indexedImage();
+        cache.put(TILE, image);
+        assertEquals(PageAllocator.PAGE_SIZE, cache.getStats().getWeight());
+
+        var copy = (BufferedImage) cache.get(TILE.getX(), TILE.getY(), TILE.getZoom());
+        assertNotNull(copy);
+        assertEquals(BufferedImage.TYPE_BYTE_INDEXED, copy.getType());
+        assertEquals(image.getColorModel(), copy.getColorModel());
+        for (int y = 0; y < 256; y += 17) {
+            for (int x = 0; x < 256; x += 13) {
+                assertEquals(image.getRGB(x, y), copy.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    void intTile() {
+        var cache = new OffHeapMemoryCache(1024 * 1024, 1);
+        var image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(10, 20, 0x80123456);
+        cache.put(TILE, image);
+        assertEquals(4L * PageAllocator.PAGE_SIZE, cache.getStats().getWeight());
+        var copy = (BufferedImage) cache.get(TILE.getX(), TILE.getY(), TILE.getZoom());
+        assertNotNull(copy);
+        assertEquals(0x80123456, copy.getRGB(10, 20));
+        assertEquals(0, copy.getRGB(0, 0));
+    }
+
+    @Test
+    void getQuietlyOnlyReadsTheHeapTier() {
+        var cache = new OffHeapMemoryCache(1024 * 1024, 1);
+        cache.put(TILE, indexedImage());
+        assertNull(cache.getQuietly(TILE.getX(), TILE.getY(), TILE.getZoom()));
+
+        var large = new OffHeapMemoryCache(1024 * 1024, 1024 * 1024);
+        var image = indexedImage();
+        large.put(TILE, image);
+        assertSame(image, large.getQuietly(TILE.getX(), TILE.getY(), TILE.getZoom()));
+    }
+
+    private static BufferedImage indexedImage() {
+        var palette = new byte[256];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = (byte) i;
+        }
+        var colorModel = new IndexColorModel(8, 256, palette, palette, palette);
+        var image      = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+        var raster     = image.getRaster();
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                raster.setSample(x, y, 0, (x + y) & 0xFF);
+            }
+        }
+        return image;
+    }
+}
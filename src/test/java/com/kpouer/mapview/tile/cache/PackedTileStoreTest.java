@@ -0,0 +1,250 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Matthieu Casanova
+ */
+class PackedTileStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void writeAndRead() throws IOException {
+        var store = new PackedTileStore(directory);
+        var tile  = new Tile(3, 5, 7);
+        store.write(tile, encodedTile(100, 1, null));
+        var encodedTile = store.read(tile);
+        assertNotNull(encodedTile);
+        assertArrayEquals(data(100, 1), encodedTile.toByteArray());
+        assertEquals("image/png", encodedTile.getContentType());
+        assertNull(encodedTile.getMetadata());
+        assertNull(store.read(new Tile(5, 3, 7)));
+    }
+
+    @Test
+    void metadata() throws IOException {
+        var store    = new PackedTileStore(directory);
+        var tile     = new Tile(1, 2, 3);
+        var metadata = new TileMetadata("\"etag\"", "Wed, 21 Oct 2015 07:28:00 GMT", 123456789L);
+        store.write(tile, encodedTile(10, 2, metadata));
+        assertMetadataEquals(metadata, store.readMetadata(tile));
+        assertMetadataEquals(metadata, store.read(tile).getMetadata());
+        assertNull(store.readMetadata(new Tile(0, 0, 0)));
+    }
+
+    @Test
+    void nonAsciiContentType() throws IOException {
+        var store       = new PackedTileStore(directory);
+        var tile        = new Tile(1, 2, 3);
+        var metadata    = new TileMetadata("etag", null, 42);
+        var contentType = "image/png; name=\"cart\u00e9\"";
+        store.write(tile, new EncodedTile(ByteBuffer.wrap(data(10, 1)), contentType, metadata));
+        assertEquals(contentType, store.read(tile).getContentType());
+        assertMetadataEquals(metadata, store.readMetadata(tile));
+
+        var reopened = new PackedTileStore(directory);
+        assertEquals(contentType, reopened.read(tile).getContentType());
+        assertMetadataEquals(metadata, reopened.readMetadata(tile));
+        assertArrayEquals(data(10, 1), reopened.read(tile).toByteArray());
+    }
+
+    @Test
+    void replaceAndRemove() throws IOException {
+        var store = new PackedTileStore(directory);
+        var tile  = new Tile(1, 1, 1);
+        store.write(tile, encodedTile(10, 1, null));
+        store.write(tile, encodedTile(20, 2, null));
+        assertArrayEquals(data(20, 2), store.read(tile).toByteArray());
+        assertTrue(store.getDeadSize() > 0);
+        store.remove(tile);
+        assertNull(store.read(tile));
+        assertNull(store.readMetadata(tile));
+    }
+
+    @Test
+    void reopen() throws IOException {
+        var store    = new PackedTileStore(directory);
+        var metadata = new TileMetadata("etag", null, 42);
+        store.write(new Tile(1, 1, 1), encodedTile(10, 1, metadata));
+        store.write(new Tile(2, 2, 2), encodedTile(20, 2, null));
+        store.write(new Tile(1, 1, 1), encodedTile(30, 3, null));
+        store.write(new Tile(3, 3, 3), encodedTile(40, 4, null));
+        store.remove(new Tile(3, 3, 3));
+
+        var reopened = new PackedTileStore(directory);
+        assertArrayEquals(data(30, 3), reopened.read(new Tile(1, 1, 1)).toByteArray());
+        assertNull(reopened.readMetadata(new Tile(1, 1, 1)));
+        assertArrayEquals(data(20, 2), reopened.read(new Tile(2, 2, 2)).toByteArray());
+        assertNull(reopened.read(new Tile(3, 3, 3)));
+        assertEquals(store.getSize(), reopened.getSize());
+    }
+
+    @Test
+    void truncatedRecordIsDiscarded() throws IOException {
+        var store = new PackedTileStore(directory);
+        store.write(new Tile(1, 1, 1), encodedTile(10, 1, null));
+        store.write(new Tile(2, 2, 2), encodedTile(100, 2, null));
+        var pack = onlyPack();
+        try (var channel = FileChannel.open(pack, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(pack) - 50);
+        }
+
+        var reopened = new PackedTileStore(directory);
+        assertArrayEquals(data(10, 1), reopened.read(new Tile(1, 1, 1)).toByteArray());
+        assertNull(reopened.read(new Tile(2, 2, 2)));
+    }
+
+    @Test
+    void recordsAcrossChunks() throws IOException {
+        var store = new PackedTileStore(directory);
+        int size  = 1024 * 1024 + 7;
+        for (int i = 0; i < 20; i++) {
+            store.write(new Tile(i, 0, 10), encodedTile(size, i, null));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(data(size, i), store.read(new Tile(i, 0, 10)).toByteArray());
+        }
+        var reopened = new PackedTileStore(directory);
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(data(size, i), reopened.read(new Tile(i, 0, 10)).toByteArray());
+        }
+    }
+
+    @Test
+    void compaction() throws Exception {
+        var store = new PackedTileStore(directory, 4096);
+        for (int i = 0; i < 100; i++) {
+            store.write(new Tile(i, 0, 5), encodedTile(200, i, null));
+        }
+        long initialSize = store.getSize();
+        // a tile read before the compaction must stay readable
+        var held = store.read(new Tile(0, 0, 5));
+        for (int i = 0; i < 100; i++) {
+            store.write(new Tile(i, 0, 5), encodedTile(200, i + 1, null));
+        }
+        waitFor(() -> store.getSize() < 1.5 * initialSize);
+        assertArrayEquals(data(200, 0), held.toByteArray());
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(data(200, i + 1), store.read(new Tile(i, 0, 5)).toByteArray());
+        }
+
+        held = null;
+        waitFor(() -> {
+            System.gc();
+            return packCount() * 4096L < 1.5 * initialSize + 4096;
+        });
+
+        var reopened = new PackedTileStore(directory, 4096);
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(data(200, i + 1), reopened.read(new Tile(i, 0, 5)).toByteArray());
+        }
+    }
+
+    @Test
+    void retiredPackIsDeletedAtStartup() throws IOException {
+        var store = new PackedTileStore(directory);
+        store.write(new Tile(1, 1, 1), encodedTile(10, 1, null));
+        var pack    = onlyPack();
+        var content = Files.readAllBytes(pack);
+        // the version of a compacted pack
+        ByteBuffer.wrap(content).putInt(4, 0);
+        Files.write(pack, content);
+
+        var reopened = new PackedTileStore(directory);
+        assertNull(reopened.read(new Tile(1, 1, 1)));
+        assertEquals(8, reopened.getSize());
+    }
+
+    @Test
+    void close() throws IOException {
+        var store = new PackedTileStore(directory);
+        var tile  = new Tile(1, 2, 3);
+        store.write(tile, encodedTile(100, 1, null));
+        var encodedTile = store.read(tile);
+        store.close();
+        // the tiles already read stay valid
+        assertArrayEquals(data(100, 1), encodedTile.toByteArray());
+        assertThrows(IOException.class, () -> store.read(tile));
+        assertThrows(IOException.class, () -> store.write(tile, encodedTile(10, 2, null)));
+        store.close();
+
+        var reopened = new PackedTileStore(directory);
+        assertArrayEquals(data(100, 1), reopened.read(tile).toByteArray());
+        reopened.close();
+    }
+
+    private static void assertMetadataEquals(TileMetadata expected, TileMetadata actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getEtag(), actual.getEtag());
+        assertEquals(expected.getLastModified(), actual.getLastModified());
+        assertEquals(expected.getExpires(), actual.getExpires());
+    }
+
+    private Path onlyPack() throws IOException {
+        var packs = new ArrayList<Path>();
+        try (var paths = Files.newDirectoryStream(directory, "*.pack")) {
+            paths.forEach(packs::add);
+        }
+        assertEquals(1, packs.size());
+        return packs.get(0);
+    }
+
+    private long packCount() throws IOException {
+        try (var paths = Files.list(directory)) {
+            return paths.count();
+        }
+    }
+
+    private static void waitFor(Condition condition) throws Exception {
+        long end = System.currentTimeMillis() + 10_000;
+        while (!condition.isTrue()) {
+            assertTrue(System.currentTimeMillis() < end, "Timeout");
+            Thread.sleep(20);
+        }
+    }
+
+    private static EncodedTile encodedTile(int length, int seed, TileMetadata metadata) {
+        return new EncodedTile(ByteBuffer.wrap(data(length, seed)), "image/png", metadata);
+    }
+
+    private static byte[] data(int length, int seed) {
+        var data = new byte[length];
+        Arrays.fill(data, (byte) seed);
+        data[0] = (byte) length;
+        return data;
+    }
+
+    @FunctionalInterface
+    private interface Condition {
+        boolean isTrue() throws Exception;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import com.kpouer.mapview.tile.Tile;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Matthieu Casanova
+ */
+class TieredTileStoreTest {
+    private static final Tile TILE = new Tile(1, 2, 3);
+
+    @Test
+    void readPromotesToUpperTiers() throws IOException {
+        var first  = new MemoryStore();
+        var second = new MemoryStore();
+        var third  = new MemoryStore();
+        var store  = new TieredTileStore(false, first, second, third);
+        third.write(TILE, encodedTile(1));
+        assertContent(1, store.read(TILE));
+        assertContent(1, first.read(TILE));
+        assertContent(1, second.read(TILE));
+        assertNull(store.read(new Tile(0, 0, 0)));
+
+        var stats = store.getStats();
+        assertEquals(1, stats.get(0).getPromotionCount());
+        assertEquals(1, stats.get(1).getPromotionCount());
+        assertEquals(1, stats.get(2).getHitCount());
+    }
+
+    @Test
+    void writeBehind() throws Exception {
+        var first  = new MemoryStore();
+        var second = new MemoryStore();
+        var store  = new TieredTileStore(first, second);
+        second.blockWrites();
+        store.write(TILE, encodedTile(1));
+        assertContent(1, first.read(TILE));
+        assertEquals(1, store.getPendingWriteCount());
+        // evicted from the first tier before being written below
+        first.remove(TILE);
+        assertContent(1, store.read(TILE));
+
+        // written twice while waiting, persisted with the last copy
+        store.write(TILE, encodedTile(2));
+        second.unblockWrites();
+        store.flush();
+        assertContent(2, second.read(TILE));
+        assertEquals(0, store.getPendingWriteCount());
+    }
+
+    @Test
+    void promotionIsDroppedWhenANewerCopyIsWritten() throws Exception {
+        var first  = new MemoryStore();
+        var second = new MemoryStore();
+        var third  = new MemoryStore();
+        var store  = new TieredTileStore(first, second, third);
+        third.write(TILE, encodedTile(1));
+        // the tile is written while the old copy is being read from the last tier
+        third.onRead = () -> {
+            try {
+                store.write(TILE, encodedTile(2));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        assertContent(1, store.read(TILE));
+        third.onRead = null;
+        store.flush();
+        assertContent(2, first.read(TILE));
+        assertContent(2, second.read(TILE));
+        assertContent(2, third.read(TILE));
+        assertContent(2, store.read(TILE));
+    }
+
+    @Test
+    void promotionIsDroppedWhenTheTileIsRemoved() throws Exception {
+        var first  = new MemoryStore();
+        var second = new MemoryStore();
+        var store  = new TieredTileStore(false, first, second);
+        second.write(TILE, encodedTile(1));
+        second.onRead = () -> {
+            try {
+                store.remove(TILE);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        store.read(TILE);
+        second.onRead = null;
+        assertNull(first.read(TILE));
+        assertNull(store.read(TILE));
+    }
+
+    @Test
+    void readOnlyTierIsNotWritten() throws IOException {
+        var first    = new MemoryStore();
+        var seed     = new MemoryStore();
+        var store    = new TieredTileStore(false, first, new ReadOnlyTileStore(seed));
+        var seedTile = new Tile(5, 5, 5);
+        seed.write(seedTile, encodedTile(1));
+        store.write(TILE, encodedTile(2));
+        assertNull(seed.read(TILE));
+        assertContent(1, store.read(seedTile));
+        assertContent(1, first.read(seedTile));
+        store.remove(seedTile);
+        assertContent(1, seed.read(seedTile));
+    }
+
+    @Test
+    void updateMetadata() throws Exception {
+        var first    = new MemoryStore();
+        var second   = new MemoryStore();
+        var store    = new TieredTileStore(first, second);
+        var metadata = new TileMetadata("etag", null, 42);
+        store.write(TILE, encodedTile(1));
+        store.updateMetadata(TILE, metadata);
+        store.flush();
+        assertEquals("etag", store.readMetadata(TILE).getEtag());
+        assertEquals("etag", second.readMetadata(TILE).getEtag());
+    }
+
+    @Test
+    void closeWritesThePendingTilesAndClosesTheTiers() throws Exception {
+        var first  = new MemoryStore();
+        var second = new MemoryStore();
+        var seed   = new MemoryStore();
+        var store  = new TieredTileStore(first, second, new ReadOnlyTileStore(seed));
+        second.blockWrites();
+        store.write(TILE, encodedTile(1));
+        var unblock = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            second.unblockWrites();
+        });
+        unblock.start();
+        store.close();
+        unblock.join();
+        assertEquals(0, store.getPendingWriteCount());
+        assertContent(1, second.read(TILE));
+        assertTrue(first.closed);
+        assertTrue(second.closed);
+        assertTrue(seed.closed);
+    }
+
+    @Test
+    void accessAfterCloseFails() throws IOException {
+        var first  = new MemoryStore();
+        var second = new MemoryStore();
+        var store  = new TieredTileStore(first, second);
+        second.write(TILE, encodedTile(1));
+        store.close();
+        assertThrows(IOException.class, () -> store.read(TILE));
+        assertThrows(IOException.class, () -> store.write(TILE, encodedTile(2)));
+        assertThrows(IOException.class, () -> store.remove(TILE));
+        assertNull(first.read(TILE));
+        store.close();
+    }
+
+    private static void assertContent(int seed, EncodedTile encodedTile) {
+        assertNotNull(encodedTile);
+        assertArrayEquals(new byte[]{(byte) seed, 1, 2, 3}, encodedTile.toByteArray());
+    }
+
+    private static EncodedTile encodedTile(int seed) {
+        return new EncodedTile(new byte[]{(byte) seed, 1, 2, 3}, "image/png");
+    }
+
+    /**
+     * An encoded memory cache whose reads and writes can be intercepted.
+     */
+    private static class MemoryStore extends EncodedMemoryCache {
+        private volatile Runnable       onRead;
+        private volatile CountDownLatch writeLatch;
+        private volatile boolean        closed;
+
+        MemoryStore() {
+            super(1024 * 1024);
+        }
+
+        void blockWrites() {
+            writeLatch = new CountDownLatch(1);
+        }
+
+        void unblockWrites() {
+            writeLatch.countDown();
+        }
+
+        @Override
+        public EncodedTile read(Tile tile) {
+            var encodedTile = super.read(tile);
+            var runnable    = onRead;
+            if (runnable != null) {
+                runnable.run();
+            }
+            return encodedTile;
+        }
+
+        @Override
+        public void write(Tile tile, EncodedTile encodedTile) {
+            var latch = writeLatch;
+            if (latch != null) {
+                try {
+                    assertTrue(latch.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.write(tile, encodedTile);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
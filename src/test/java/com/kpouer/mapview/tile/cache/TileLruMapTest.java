@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021-2023 Matthieu Casanova
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kpouer.mapview.tile.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Matthieu Casanova
+ */
+class TileLruMapTest {
+    @Test
+    void putAndGet() {
+        var map = new TileLruMap<String>(100, 1, String::length);
+        map.put(1, 2, 3, "a");
+        assertEquals("a", map.get(1, 2, 3));
+        assertNull(map.get(2, 1, 3));
+        assertNull(map.get(1, 2, 4));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        var map = new TileLruMap<String>(3, 1, String::length);
+        map.put(0, 0, 1, "a");
+        map.put(1, 0, 1, "b");
+        map.put(2, 0, 1, "c");
+        // (0, 0) becomes the most recently used
+        assertEquals("a", map.get(0, 0, 1));
+        map.put(3, 0, 1, "d");
+        assertNull(map.get(1, 0, 1));
+        assertEquals("a", map.get(0, 0, 1));
+        assertEquals("c", map.get(2, 0, 1));
+        assertEquals("d", map.get(3, 0, 1));
+        var stats = map.getStats();
+        assertEquals(1, stats.getEvictionCount());
+        assertEquals(3, stats.getSize());
+        assertEquals(3, stats.getWeight());
+    }
+
+    @Test
+    void evictsByWeight() {
+        var map = new TileLruMap<String>(10, 1, String::length);
+        map.put(0, 0, 1, "aaaa");
+        map.put(1, 0, 1, "bbbb");
+        map.put(2, 0, 1, "cccccc");
+        assertNull(map.get(0, 0, 1));
+        assertEquals("bbbb", map.get(1, 0, 1));
+        assertEquals("cccccc", map.get(2, 0, 1));
+        assertEquals(10, map.getStats().getWeight());
+        map.put(3, 0, 1, "ddddddd");
+        assertNull(map.get(1, 0, 1));
+        assertNull(map.get(2, 0, 1));
+        assertEquals(7, map.getStats().getWeight());
+    }
+
+    @Test
+    void replaceUpdatesWeight() {
+        var map = new TileLruMap<String>(10, 1, String::length);
+        map.put(0, 0, 1, "aaaa");
+        map.put(0, 0, 1, "bb");
+        assertEquals("bb", map.get(0, 0, 1));
+        var stats = map.getStats();
+        assertEquals(1, stats.getSize());
+        assertEquals(2, stats.getWeight());
+    }
+
+    @Test
+    void rejectsValuesLargerThanCapacity() {
+        var removed = new ArrayList<String>();
+        var map     = new TileLruMap<String>(4, 1, String::length, removed::add);
+        map.put(0, 0, 1, "a");
+        map.put(0, 0, 1, "too large");
+        assertNull(map.get(0, 0, 1));
+        assertEquals(List.of("a", "too large"), removed);
+        assertEquals(0, map.getStats().getWeight());
+    }
+
+    @Test
+    void removalListener() {
+        var removed = new ArrayList<String>();
+        var map     = new TileLruMap<String>(2, 1, String::length, removed::add);
+        map.put(0, 0, 1, "a");
+        map.put(1, 0, 1, "b");
+        map.put(0, 0, 1, "c");
+        assertEquals(List.of("a"), removed);
+        map.put(2, 0, 1, "d");
+        assertEquals(List.of("a", "b"), removed);
+        assertEquals("c", map.remove(0, 0, 1));
+        assertEquals(List.of("a", "b", "c"), removed);
+        map.clear();
+        assertEquals(List.of("a", "b", "c", "d"), removed);
+        assertEquals(0, map.getStats().getSize());
+    }
+
+    @Test
+    void stats() {
+        var map = new TileLruMap<String>(100, 1, String::length);
+        map.put(0, 0, 1, "a");
+        map.get(0, 0, 1);
+        map.get(1, 0, 1);
+        map.getAndApply(0, 0, 1, String::length);
+        var stats = map.getStats();
+        assertEquals(2, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+    }
+
+    @Test
+    void quietLookupsAreNotCounted() {
+        var map = new TileLruMap<String>(100, 1, String::length);
+        map.put(0, 0, 1, "a");
+        assertEquals("a", map.getQuietly(0, 0, 1));
+        assertNull(map.getQuietly(1, 0, 1));
+        assertEquals(1, map.getAndApply(0, 0, 1, String::length, false));
+        assertNull(map.getAndApply(1, 0, 1, String::length, false));
+        var stats = map.getStats();
+        assertEquals(0, stats.getHitCount());
+        assertEquals(0, stats.getMissCount());
+    }
+
+    @Test
+    void quietLookupsUpdateRecency() {
+        var map = new TileLruMap<String>(2, 1, String::length);
+        map.put(0, 0, 1, "a");
+        map.put(1, 0, 1, "b");
+        map.getQuietly(0, 0, 1);
+        map.put(2, 0, 1, "c");
+        assertEquals("a", map.get(0, 0, 1));
+        assertNull(map.get(1, 0, 1));
+    }
+
+    @Test
+    void manyEntriesInSegments() {
+        var map = new TileLruMap<Integer>(Long.MAX_VALUE, 16, value -> 1);
+        for (int i = 0; i < 10_000; i++) {
+            map.put(i, i / 7, 12, i);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(i, map.get(i, i / 7, 12));
+        }
+        assertEquals(10_000, map.getStats().getSize());
+    }
+}